@@ -68,6 +68,7 @@ public class Field extends PI1GameWorld
         setMaintainPaintOrder(true);
         showLevelName();
         level.checkLikes(false);
+        level.watchLikes();
     }
 
     /**
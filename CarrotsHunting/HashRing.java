@@ -0,0 +1,94 @@
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * The hash ring assigns each level to a server node like 'localhost:55555'.
+ * It places every node at several points of a ring and a level belongs to the
+ * first point following its hash, just like the ring of the server, so that
+ * the game asks the owner of a level directly.
+ * 
+ * @author Rune Krauss
+ * @author Steffen Gerken
+ * @author Niels Arbatschat
+ */
+public class HashRing
+{
+    /**
+     * Points of a node on the ring
+     */
+    private final int POINTS_PER_NODE = 100;
+
+    /**
+     * Hashes of the points in ascending order
+     */
+    private long[] points;
+
+    /**
+     * Nodes of the points
+     */
+    private String[] owners;
+
+    /**
+     * Constructor for objects of class HashRing.
+     * 
+     * @param nodes
+     *      Nodes like 'localhost:55555' separated by commas in the same order as on the server
+     */
+    public HashRing(String nodes)
+    {
+        String[] nodeList = nodes.split(",");
+        long[][] placed = new long[nodeList.length * POINTS_PER_NODE][];
+        for (int n = 0; n < nodeList.length; n++) {
+            for (int i = 0; i < POINTS_PER_NODE; i++) {
+                placed[n * POINTS_PER_NODE + i] = new long[] { hash(nodeList[n].trim() + "#" + i), n };
+            }
+        }
+        Arrays.sort(placed, (a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+        points = new long[placed.length];
+        owners = new String[placed.length];
+        for (int i = 0; i < placed.length; i++) {
+            points[i] = placed[i][0];
+            owners[i] = nodeList[(int) placed[i][1]].trim();
+        }
+    }
+
+    /**
+     * Gets the address of the node owning a level.
+     * 
+     * @param level
+     *      ID of the level like 'level1'
+     * @return Address of the node
+     */
+    public InetSocketAddress getAddress(String level) {
+        int i = Arrays.binarySearch(points, hash(level));
+        if (i < 0) {
+            i = -i - 1;
+        }
+        String owner = owners[i == points.length ? 0 : i];
+        int colon = owner.lastIndexOf(':');
+        return new InetSocketAddress(owner.substring(0, colon), Integer.parseInt(owner.substring(colon + 1)));
+    }
+
+    /**
+     * Hashes a key to a point of the ring.
+     * 
+     * @param key
+     *      Node point or level ID
+     * @return First eight bytes of the MD5 of the key
+     */
+    private long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            long hash = 0;
+            for (int i = 0; i < 8; i++) {
+                hash = (hash << 8) | (digest[i] & 0xFF);
+            }
+            return hash;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not available.", e);
+        }
+    }
+}
@@ -5,7 +5,6 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import javax.swing.JOptionPane;
@@ -68,14 +67,14 @@ public class Level
     private Field field;
 
     /**
-     * Internet socket address of the server
+     * Internet socket address of the server node owning this level
      */
     private InetSocketAddress address;
 
     /**
-     * Writer to print outgoing messages
+     * Connection to the server which is kept open for further commands
      */
-    private PrintWriter out;
+    private Socket socket;
 
     /**
      * Input stream
@@ -88,9 +87,14 @@ public class Level
     private OutputStream output;
 
     /**
-     * Reader regarding the console
+     * Connection to the server which receives the pushed likes
      */
-    private BufferedReader br;
+    private volatile Socket watchSocket;
+
+    /**
+     * Level whose likes are watched currently
+     */
+    private static Level watching;
 
     /**
      * Host of the server
@@ -102,6 +106,57 @@ public class Level
      */
     private final int PORT = 55555;
 
+    /**
+     * Server nodes owning the levels like 'localhost:55551,localhost:55552',
+     * which are given by the system property 'carrots.nodes'
+     */
+    private final String NODES = System.getProperty("carrots.nodes", HOST + ":" + PORT);
+
+    /**
+     * First byte of a connection regarding the binary protocol of the server
+     */
+    private final int MAGIC = 0xFE;
+
+    /**
+     * Opcode of the binary protocol to count the likes of a level
+     */
+    private final int GET = 1;
+
+    /**
+     * Opcode of the binary protocol to add a like
+     */
+    private final int ADD = 2;
+
+    /**
+     * Opcode of the binary protocol to push the likes of a level whenever they change
+     */
+    private final int WATCH = 5;
+
+    /**
+     * Status of the binary protocol regarding a successful request
+     */
+    private final int OK = 0;
+
+    /**
+     * Status of the binary protocol regarding an existing user name
+     */
+    private final int EXISTS = 1;
+
+    /**
+     * Status of the binary protocol regarding pushed likes
+     */
+    private final int PUSH = 4;
+
+    /**
+     * Status of the binary protocol regarding a request which the server does not offer
+     */
+    private final int UNAVAILABLE = 6;
+
+    /**
+     * Time in milliseconds between two polls of the likes if the server does not offer watching
+     */
+    private final int POLL_INTERVAL = 5000;
+
     /**
      * Constructor for objects of class Level.
      * 
@@ -321,7 +376,7 @@ public class Level
         field.addObject(likeCounter, 681, 31);
         LikeButton likeButton = new LikeButton();
         field.addObject(likeButton, 631, 31);
-        address = new InetSocketAddress(HOST, PORT);
+        address = new HashRing(NODES).getAddress(Field.getLevelName());
     }
 
     /**
@@ -351,23 +406,20 @@ public class Level
      */
     public void like() {
         try {
-            Socket socket = new Socket();
-            socket.connect(address);
-            out = new PrintWriter(socket.getOutputStream(), true);
             String userName = System.getProperty("user.name");
             System.out.println(Field.getLevelName());
-            out.println("add " + Field.getLevelName() + " " + userName);
-            input = socket.getInputStream();
-            br = new BufferedReader(new InputStreamReader(input));
-            String msg = br.readLine();
-            if (msg.equals("The user name was accepted.")) {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            payload.write(ADD);
+            writeVarint(payload, getLevelNumber());
+            payload.write(userName.getBytes("UTF-8"));
+            byte[] msg = request(payload.toByteArray());
+            if (msg[0] == OK) {
                 checkLikes(true);
-            } else if (msg.equals("The user name already exists.")) {
+            } else if (msg[0] == EXISTS) {
                 JOptionPane.showMessageDialog(new JInternalFrame(), "The user name already exists.","Duplicate name", JOptionPane.INFORMATION_MESSAGE);
-            } else if (msg.equals("The regular expression did not match with the given commands.")) {
+            } else {
                 JOptionPane.showMessageDialog(new JInternalFrame(), "The regular expression did not match with the given commands.","Incorrect regular expression", JOptionPane.INFORMATION_MESSAGE);
             }
-            socket.close();
         } catch (IOException e) {
             JOptionPane.showMessageDialog(new JInternalFrame(), "The server could not be reached. Try again later.","Connection refused", JOptionPane.INFORMATION_MESSAGE);
             //e.printStackTrace();
@@ -379,26 +431,289 @@ public class Level
      */
     public void checkLikes(boolean popup) {
         try {
-            Socket socket = new Socket();
-            socket.connect(address);
-            out = new PrintWriter(socket.getOutputStream(), true);
-            out.println("get " + Field.getLevelName());
-            input = socket.getInputStream();
-            br = new BufferedReader(new InputStreamReader(input));
-            int likes = Integer.parseInt(br.readLine());
-            socket.close();
-            List<LikeCounter> likeCounter = field.getObjects(LikeCounter.class);
-            likeCounter.get(0).add(likes);
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            payload.write(GET);
+            writeVarint(payload, getLevelNumber());
+            byte[] msg = request(payload.toByteArray());
+            if (msg[0] != OK) {
+                if (popup) {
+                    JOptionPane.showMessageDialog(new JInternalFrame(), "The regular expression did not match with the given commands.","Incorrect regular expression", JOptionPane.INFORMATION_MESSAGE);
+                }
+                return;
+            }
+            showLikes(readVarint(new ByteArrayInputStream(msg, 1, msg.length - 1)));
         } catch (IOException ioe) {
             if (popup) {
                 JOptionPane.showMessageDialog(new JInternalFrame(), "The server could not be reached. Try again later.","Connection refused", JOptionPane.INFORMATION_MESSAGE);
             }
             //ioe.printStackTrace();
-        } catch (NumberFormatException nfe) {
-            if (popup) {
-                JOptionPane.showMessageDialog(new JInternalFrame(), "The regular expression did not match with the given commands.","Incorrect regular expression", JOptionPane.INFORMATION_MESSAGE);
-                //nfe.printStackTrace();
+        }
+    }
+
+    /**
+     * Watches the likes of this level, so that the like counter shows the likes
+     * of other players as they happen. The server pushes the changed likes over
+     * a separate connection which is read by a daemon thread. If the server
+     * does not offer watching, the thread polls the likes over a short
+     * connection per poll instead, so that no thread of the server is kept. A
+     * level watched before is not watched anymore.
+     */
+    public void watchLikes() {
+        synchronized (Level.class) {
+            if (watching != null) {
+                watching.stopWatching();
+            }
+            watching = this;
+        }
+        final int levelNumber = getLevelNumber();
+        final Socket socket = new Socket();
+        watchSocket = socket;
+        Thread watcher = new Thread(() -> {
+            try {
+                socket.connect(address);
+                OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+                InputStream in = new BufferedInputStream(socket.getInputStream());
+                ByteArrayOutputStream payload = new ByteArrayOutputStream();
+                payload.write(WATCH);
+                writeVarint(payload, 1);
+                writeVarint(payload, levelNumber);
+                ByteArrayOutputStream frame = new ByteArrayOutputStream();
+                frame.write(MAGIC);
+                writeVarint(frame, payload.size());
+                frame.write(payload.toByteArray());
+                out.write(frame.toByteArray());
+                out.flush();
+                int length;
+                while ((length = readVarint(in)) > 0) {
+                    byte[] msg = new byte[length];
+                    new DataInputStream(in).readFully(msg);
+                    if (msg[0] == UNAVAILABLE) {
+                        socket.close();
+                        pollLikes(socket, levelNumber);
+                        return;
+                    }
+                    InputStream fields = new ByteArrayInputStream(msg, 1, msg.length - 1);
+                    int n = readVarint(fields);
+                    if (msg[0] == OK && n == 1) {
+                        showLikes(readVarint(fields));
+                    } else if (msg[0] == PUSH) {
+                        for (int i = 0; i < n; ++i) {
+                            int level = readVarint(fields);
+                            int likes = readVarint(fields);
+                            if (level == levelNumber) {
+                                showLikes(likes);
+                            }
+                        }
+                    }
+                }
+            } catch (IOException ioe) {
+                //ioe.printStackTrace();
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException ioe) {
+                    //ioe.printStackTrace();
+                }
+            }
+        }, "like-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    /**
+     * Polls the likes of this level until another level is watched. Each poll
+     * connects, asks for the likes and disconnects again.
+     * @param watched
+     *      Closed connection of the watch, which is not the watched one anymore once the watch was stopped
+     * @param levelNumber
+     *      Number of the level
+     */
+    private void pollLikes(Socket watched, int levelNumber) {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        frame.write(MAGIC);
+        writeVarint(frame, 1 + varintSize(levelNumber));
+        frame.write(GET);
+        writeVarint(frame, levelNumber);
+        while (watchSocket == watched) {
+            try (Socket socket = new Socket()) {
+                socket.connect(address);
+                socket.setSoTimeout(POLL_INTERVAL);
+                OutputStream out = socket.getOutputStream();
+                out.write(frame.toByteArray());
+                out.flush();
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                int length = readVarint(in);
+                if (length > 0) {
+                    byte[] msg = new byte[length];
+                    in.readFully(msg);
+                    if (msg[0] == OK) {
+                        showLikes(readVarint(new ByteArrayInputStream(msg, 1, msg.length - 1)));
+                    }
+                }
+            } catch (IOException ioe) {
+                //ioe.printStackTrace();
+            }
+            try {
+                Thread.sleep(POLL_INTERVAL);
+            } catch (InterruptedException ie) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Stops watching the likes of this level by closing its connection, which
+     * also ends polling them.
+     */
+    private void stopWatching() {
+        Socket socket = watchSocket;
+        watchSocket = null;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException ioe) {
+                //ioe.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Shows the likes of this level on the like counter.
+     * @param likes
+     *      Number of likes
+     */
+    private void showLikes(int likes) {
+        List<LikeCounter> likeCounter = field.getObjects(LikeCounter.class);
+        if (!likeCounter.isEmpty()) {
+            likeCounter.get(0).add(likes);
+        }
+    }
+
+    /**
+     * Gets the number of the active level, e.g. 1 regarding 'level1'.
+     * @return Number of the level
+     */
+    private int getLevelNumber() {
+        return Integer.parseInt(Field.getLevelName().substring("level".length()));
+    }
+
+    /**
+     * Sends a request frame to the server and reads its answer frame. The
+     * connection is kept open for further requests and opened again once if
+     * the server has closed it in the meantime.
+     * @param payload
+     *      Payload of the request frame
+     * @return Payload of the answer frame
+     * @throws IOException
+     *      If the server could not be reached, this exception will be expected.
+     */
+    private byte[] request(byte[] payload) throws IOException {
+        try {
+            return send(payload);
+        } catch (IOException ioe) {
+            disconnect();
+            return send(payload);
+        }
+    }
+
+    /**
+     * Sends a request frame over the kept connection and reads its answer frame.
+     * A new connection starts with the magic byte of the binary protocol.
+     * @param payload
+     *      Payload of the request frame
+     * @return Payload of the answer frame
+     * @throws IOException
+     *      If the server could not be reached, this exception will be expected.
+     */
+    private byte[] send(byte[] payload) throws IOException {
+        if (socket == null || socket.isClosed()) {
+            socket = new Socket();
+            socket.connect(address);
+            output = new BufferedOutputStream(socket.getOutputStream());
+            input = new BufferedInputStream(socket.getInputStream());
+            output.write(MAGIC);
+        }
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        writeVarint(frame, payload.length);
+        frame.write(payload);
+        output.write(frame.toByteArray());
+        output.flush();
+        int length = readVarint(input);
+        if (length <= 0) {
+            throw new IOException("The server has closed the connection.");
+        }
+        byte[] msg = new byte[length];
+        new DataInputStream(input).readFully(msg);
+        return msg;
+    }
+
+    /**
+     * Writes an unsigned varint.
+     * @param output
+     *      Stream to write to
+     * @param value
+     *      Non-negative value
+     */
+    private void writeVarint(ByteArrayOutputStream output, int value) {
+        while ((value & ~0x7F) != 0) {
+            output.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        output.write(value);
+    }
+
+    /**
+     * Counts the bytes of an unsigned varint.
+     * @param value
+     *      Non-negative value
+     * @return Number of bytes
+     */
+    private int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            ++size;
+        }
+        return size;
+    }
+
+    /**
+     * Reads an unsigned varint.
+     * @param input
+     *      Stream to read from
+     * @return Value of the varint or -1 if the stream ended before it
+     * @throws IOException
+     *      If the varint is incomplete, this exception will be expected.
+     */
+    private int readVarint(InputStream input) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = input.read();
+            if (b < 0) {
+                if (shift == 0) {
+                    return -1;
+                }
+                throw new EOFException("The varint is incomplete.");
+            }
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("The varint is too long.");
+    }
+
+    /**
+     * Closes the connection to the server.
+     */
+    public void disconnect() {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException ioe) {
+                //ioe.printStackTrace();
             }
+            socket = null;
         }
     }
 }
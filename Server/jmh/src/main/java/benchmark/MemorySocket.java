@@ -0,0 +1,88 @@
+package benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * Represents a connected client in memory, so that a handler answers its
+ * commands without the network. The input is read from a byte array and the
+ * output is only counted.
+ * 
+ * @author Rune Krauss
+ * @author Steffen Gerken
+ * @author Niels Arbatschat
+ */
+final class MemorySocket extends Socket {
+
+	/** Input of the client */
+	private final InputStream input;
+
+	/** Number of bytes written to the client */
+	private long written;
+
+	/** Output to the client */
+	private final OutputStream output = new OutputStream() {
+
+		@Override
+		public void write(int b) {
+			++written;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			written += len;
+		}
+	};
+
+	/** Timeout of the input in milliseconds */
+	private int soTimeout;
+
+	/**
+	 * Constructor of the socket which initializes the attributes.
+	 * 
+	 * @param input
+	 *            Bytes sent by the client
+	 */
+	MemorySocket(byte[] input) {
+		this.input = new ByteArrayInputStream(input);
+	}
+
+	@Override
+	public InputStream getInputStream() {
+		return input;
+	}
+
+	@Override
+	public OutputStream getOutputStream() {
+		return output;
+	}
+
+	@Override
+	public int getSoTimeout() {
+		return soTimeout;
+	}
+
+	@Override
+	public void setSoTimeout(int timeout) {
+		soTimeout = timeout;
+	}
+
+	@Override
+	public void shutdownOutput() {
+	}
+
+	@Override
+	public void close() {
+	}
+
+	/**
+	 * Gets the number of bytes written to the client.
+	 * 
+	 * @return Number of bytes
+	 */
+	long getWritten() {
+		return written;
+	}
+}
@@ -0,0 +1,181 @@
+package benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import javax.xml.stream.XMLStreamException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import server.BinaryProtocol;
+import server.Command;
+import server.Handler;
+import server.LikeStore;
+import server.Metrics;
+import server.Protocol;
+import server.Watch;
+
+/**
+ * Benchmarks answering requests in-process against stores of different sizes.
+ * A request is decoded, looked up in the store, appended to the log in case of
+ * 'add' and encoded. The handler benchmark additionally covers reading the
+ * lines of a connection and writing the answers, whereby the connection is a
+ * socket in memory.
+ * 
+ * @author Rune Krauss
+ * @author Steffen Gerken
+ * @author Niels Arbatschat
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class RequestBenchmark {
+
+	/** Number of commands per connection regarding the handler */
+	private static final int COMMANDS = 100;
+
+	/** Line counting the likes of a level */
+	private static final byte[] GET = "get level1".getBytes(StandardCharsets.UTF_8);
+
+	/** Binary request counting the likes of a level */
+	private static final byte[] BINARY_GET = { BinaryProtocol.GET, 1 };
+
+	/** Number of likes in the store before the benchmark */
+	@Param({ "1000", "100000", "1000000" })
+	public int likes;
+
+	/** Directory of the store */
+	private File dir;
+
+	/** Likes of all levels */
+	private LikeStore store;
+
+	/** Metrics of the server */
+	private Metrics metrics;
+
+	/** Text protocol */
+	private Protocol protocol;
+
+	/** Binary protocol */
+	private BinaryProtocol binaryProtocol;
+
+	/** Command which is reused like per connection */
+	private final Command command = new Command();
+
+	/** Levels watched by the connection */
+	private final Watch watch = new Watch();
+
+	/** Answers of the text protocol */
+	private final ByteArrayOutputStream answers = new ByteArrayOutputStream();
+
+	/** Number of the next user name, so that each 'add' is accepted */
+	private long user;
+
+	/**
+	 * Creates and loads the store.
+	 * 
+	 * @throws XMLStreamException
+	 *             Signals that the XML file is not well-formed.
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	@Setup(Level.Trial)
+	public void setUp() throws XMLStreamException, IOException {
+		dir = Stores.create(likes);
+		store = new LikeStore(Stores.log(dir).getPath());
+		store.load();
+		metrics = new Metrics(store.getWriteLatency());
+		protocol = new Protocol(store, metrics);
+		binaryProtocol = new BinaryProtocol(store, metrics);
+	}
+
+	/**
+	 * Closes and deletes the store.
+	 * 
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		store.close();
+		Stores.delete(dir);
+	}
+
+	/**
+	 * Answers 'get level1' via the text protocol.
+	 * 
+	 * @return Length of the answer
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	@Benchmark
+	public int get() throws IOException {
+		answers.reset();
+		protocol.answer(command, watch, GET, 0, GET.length, answers);
+		return answers.size();
+	}
+
+	/**
+	 * Answers 'add' with a new user name via the text protocol, which
+	 * appends the like to the log.
+	 * 
+	 * @return Length of the answer
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	@Benchmark
+	public int add() throws IOException {
+		byte[] line = ("add level" + (1 + user % Stores.LEVELS) + " jmh" + user++).getBytes(StandardCharsets.UTF_8);
+		answers.reset();
+		protocol.answer(command, watch, line, 0, line.length, answers);
+		return answers.size();
+	}
+
+	/**
+	 * Answers GET via the binary protocol.
+	 * 
+	 * @return Answer frame
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	@Benchmark
+	public byte[] binaryGet() throws IOException {
+		return binaryProtocol.answer(ByteBuffer.wrap(BINARY_GET), watch);
+	}
+
+	/**
+	 * Lets a handler answer a connection with pipelined commands, one 'add'
+	 * with a new user name per nine 'get'.
+	 * 
+	 * @return Number of bytes written to the client
+	 */
+	@Benchmark
+	@OperationsPerInvocation(COMMANDS)
+	public long handler() {
+		StringBuilder lines = new StringBuilder();
+		for (int i = 0; i < COMMANDS; ++i) {
+			String level = "level" + (1 + i % Stores.LEVELS);
+			lines.append(i % 10 == 0 ? "add " + level + " jmh" + user++ : "get " + level).append('\n');
+		}
+		MemorySocket socket = new MemorySocket(lines.toString().getBytes(StandardCharsets.UTF_8));
+		new Handler(socket, protocol, binaryProtocol, metrics, 250).run();
+		return socket.getWritten();
+	}
+}
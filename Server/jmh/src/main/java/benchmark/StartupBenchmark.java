@@ -0,0 +1,174 @@
+package benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import javax.xml.stream.XMLStreamException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import server.LikeStore;
+
+/**
+ * Benchmarks the startup of the server. The first start creates the XML file
+ * via Main.createXMLFile, imports it and loads the new store. A restart loads
+ * an existing store of a given size from its snapshots and log. Each
+ * operation is measured once per iteration, since startup runs only once per
+ * process.
+ * 
+ * @author Rune Krauss
+ * @author Steffen Gerken
+ * @author Niels Arbatschat
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class StartupBenchmark {
+
+	/** Path to the XML file which Main creates in the working directory */
+	private static final String XML_FILE = "level.xml";
+
+	/**
+	 * State regarding the first start
+	 */
+	@State(Scope.Benchmark)
+	public static class FirstStart {
+
+		/** Method of Main which creates the XML file */
+		private Method createXMLFile;
+
+		/** Directory of the store */
+		private File dir;
+
+		/**
+		 * Looks up the private method of Main and checks that the XML file
+		 * of a real server is not overwritten.
+		 * 
+		 * @throws ReflectiveOperationException
+		 *             If Main cannot be accessed, this exception will be
+		 *             expected.
+		 */
+		@Setup(Level.Trial)
+		public void setUp() throws ReflectiveOperationException {
+			if (new File(XML_FILE).exists()) {
+				throw new IllegalStateException("The benchmark has to run in a directory without " + XML_FILE + ".");
+			}
+			createXMLFile = Class.forName("Main").getDeclaredMethod("createXMLFile");
+			createXMLFile.setAccessible(true);
+		}
+
+		/**
+		 * Creates a new directory of the store.
+		 * 
+		 * @throws IOException
+		 *             Signals that an I/O exception of some sort has occurred.
+		 */
+		@Setup(Level.Invocation)
+		public void createDirectory() throws IOException {
+			dir = Files.createTempDirectory("jmh-start").toFile();
+		}
+
+		/**
+		 * Deletes the XML file and the store.
+		 * 
+		 * @throws IOException
+		 *             Signals that an I/O exception of some sort has occurred.
+		 */
+		@TearDown(Level.Invocation)
+		public void delete() throws IOException {
+			new File(XML_FILE).delete();
+			Stores.delete(dir);
+		}
+	}
+
+	/**
+	 * State regarding a restart
+	 */
+	@State(Scope.Benchmark)
+	public static class Restart {
+
+		/** Number of likes in the store */
+		@Param({ "1000", "100000", "1000000" })
+		public int likes;
+
+		/** Directory of the store */
+		private File dir;
+
+		/**
+		 * Creates the store.
+		 * 
+		 * @throws XMLStreamException
+		 *             Signals that the XML file is not well-formed.
+		 * @throws IOException
+		 *             Signals that an I/O exception of some sort has occurred.
+		 */
+		@Setup(Level.Trial)
+		public void setUp() throws XMLStreamException, IOException {
+			dir = Stores.create(likes);
+		}
+
+		/**
+		 * Deletes the store.
+		 * 
+		 * @throws IOException
+		 *             Signals that an I/O exception of some sort has occurred.
+		 */
+		@TearDown(Level.Trial)
+		public void tearDown() throws IOException {
+			Stores.delete(dir);
+		}
+	}
+
+	/**
+	 * Creates the XML file, imports it and loads the new store like the
+	 * first start of Main.
+	 * 
+	 * @param state
+	 *            State regarding the first start
+	 * @return Number of levels
+	 * @throws Exception
+	 *             If the start fails, this exception will be expected.
+	 */
+	@Benchmark
+	public int firstStart(FirstStart state) throws Exception {
+		state.createXMLFile.invoke(null);
+		LikeStore store = new LikeStore(Stores.log(state.dir).getPath());
+		store.importXML(XML_FILE, new File(state.dir, "level.journal").getPath());
+		store.load();
+		int levels = store.countAll().size();
+		store.close();
+		return levels;
+	}
+
+	/**
+	 * Loads an existing store like a restart of Main.
+	 * 
+	 * @param state
+	 *            State regarding a restart
+	 * @return Number of levels
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	@Benchmark
+	public int restart(Restart state) throws IOException {
+		LikeStore store = new LikeStore(Stores.log(state.dir).getPath());
+		store.load();
+		int levels = store.countAll().size();
+		store.close();
+		return levels;
+	}
+}
@@ -0,0 +1,101 @@
+package benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+import javax.xml.stream.XMLStreamException;
+import server.LikeStore;
+
+/**
+ * Creates stores with a given number of likes for the benchmarks. The likes
+ * are spread round robin over the levels 'level1' to 'level10'.
+ * 
+ * @author Rune Krauss
+ * @author Steffen Gerken
+ * @author Niels Arbatschat
+ */
+final class Stores {
+
+	/** Number of levels */
+	static final int LEVELS = 10;
+
+	/** Number of likes added at once */
+	private static final int BATCH_SIZE = 1000;
+
+	/**
+	 * Prevents instances since the class only offers static methods.
+	 */
+	private Stores() {
+	}
+
+	/**
+	 * Creates a store in a new temporary directory whose log is in the
+	 * subdirectory 'likes'.
+	 * 
+	 * @param likes
+	 *            Number of likes
+	 * @return Directory of the store
+	 * @throws XMLStreamException
+	 *             Signals that the XML file is not well-formed.
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	static File create(int likes) throws XMLStreamException, IOException {
+		File dir = Files.createTempDirectory("jmh-store").toFile();
+		File xmlFile = new File(dir, "level.xml");
+		StringBuilder xml = new StringBuilder("<levels>");
+		for (int i = 1; i <= LEVELS; ++i) {
+			xml.append("<level id=\"level").append(i).append("\"/>");
+		}
+		Files.write(xmlFile.toPath(), xml.append("</levels>").toString().getBytes(StandardCharsets.UTF_8));
+		LikeStore store = new LikeStore(log(dir).getPath());
+		store.importXML(xmlFile.getPath(), new File(dir, "level.journal").getPath());
+		store.load();
+		List<String> levels = new ArrayList<>(BATCH_SIZE);
+		List<String> users = new ArrayList<>(BATCH_SIZE);
+		for (int i = 0; i < likes; ++i) {
+			levels.add("level" + (1 + i % LEVELS));
+			users.add("user" + i);
+			if (levels.size() == BATCH_SIZE || i == likes - 1) {
+				store.add(levels, users);
+				levels.clear();
+				users.clear();
+			}
+		}
+		store.close();
+		return dir;
+	}
+
+	/**
+	 * Gets the directory of the log of a store.
+	 * 
+	 * @param dir
+	 *            Directory of the store
+	 * @return Directory of the log
+	 */
+	static File log(File dir) {
+		return new File(dir, "likes");
+	}
+
+	/**
+	 * Deletes a directory with its content.
+	 * 
+	 * @param dir
+	 *            Directory to delete
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	static void delete(File dir) throws IOException {
+		try (Stream<Path> paths = Files.walk(dir.toPath())) {
+			for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+				Files.delete(path);
+			}
+		}
+	}
+}
@@ -0,0 +1,165 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import server.LikeStore;
+import server.Server;
+
+/**
+ * Compares the modes of the server. Opens many concurrent connections, lets
+ * them idle like slow clients and sends one command per connection afterwards.
+ * 
+ * @author Rune Krauss
+ * @author Steffen Gerken
+ * @author Niels Arbatschat
+ */
+public class Benchmark {
+
+	/** Number of client threads */
+	private static final int CLIENT_THREADS = 16;
+
+	/**
+	 * Runs the benchmark for each mode which is available.
+	 * 
+	 * @param args
+	 *            Number of connections, idle time of the clients in
+	 *            milliseconds and port of the server
+	 * @throws Exception
+	 *             If the benchmark fails, this exception will be expected.
+	 */
+	public static void main(String args[]) throws Exception {
+		int connections = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		long idle = args.length > 1 ? Long.parseLong(args[1]) : 100;
+		int port = args.length > 2 ? Integer.parseInt(args[2]) : 55556;
+		for (Server.Mode mode : Server.Mode.values()) {
+			if (mode == Server.Mode.VIRTUAL && !Server.supportsVirtualThreads()) {
+				System.out.println(mode + ": skipped, virtual threads need Java 21 or newer.");
+				continue;
+			}
+			run(mode, connections, idle, port);
+		}
+	}
+
+	/**
+	 * Starts a server in a mode and measures the answers of the clients.
+	 * 
+	 * @param mode
+	 *            Mode of the server
+	 * @param connections
+	 *            Number of concurrent connections
+	 * @param idle
+	 *            Time in milliseconds between connecting and sending
+	 * @param port
+	 *            Port of the server
+	 * @throws Exception
+	 *             If the benchmark fails, this exception will be expected.
+	 */
+	private static void run(Server.Mode mode, int connections, long idle, int port) throws Exception {
+		File dir = Files.createTempDirectory("benchmark").toFile();
+		File xmlFile = new File(dir, "level.xml");
+		Files.write(xmlFile.toPath(), "<levels><level id=\"level1\"/></levels>".getBytes(StandardCharsets.UTF_8));
+		LikeStore store = new LikeStore(new File(dir, "likes").getPath());
+		store.importXML(xmlFile.getPath(), new File(dir, "level.journal").getPath());
+		store.load();
+		Server server = new Server(port, store);
+		server.setMode(mode);
+		new Thread(server).start();
+		Thread.sleep(500);
+
+		InetSocketAddress address = new InetSocketAddress("localhost", port);
+		long[] latencies = new long[connections];
+		AtomicInteger failures = new AtomicInteger();
+		AtomicInteger rejected = new AtomicInteger();
+		CountDownLatch connected = new CountDownLatch(CLIENT_THREADS);
+		List<Thread> clients = new ArrayList<>();
+		for (int t = 0; t < CLIENT_THREADS; ++t) {
+			int from = connections * t / CLIENT_THREADS;
+			int to = connections * (t + 1) / CLIENT_THREADS;
+			Thread client = new Thread(() -> {
+				List<Socket> sockets = new ArrayList<>();
+				try {
+					try {
+						for (int i = from; i < to; ++i) {
+							Socket socket = new Socket();
+							socket.connect(address);
+							sockets.add(socket);
+						}
+					} finally {
+						connected.countDown();
+					}
+					Thread.sleep(idle);
+					long[] sent = new long[sockets.size()];
+					for (int i = 0; i < sockets.size(); ++i) {
+						OutputStream output = sockets.get(i).getOutputStream();
+						sent[i] = System.nanoTime();
+						output.write((i % 10 == 0 ? "add level1 user" + (from + i) : "get level1").concat("\n")
+								.getBytes(StandardCharsets.UTF_8));
+						output.flush();
+					}
+					for (int i = 0; i < sockets.size(); ++i) {
+						BufferedReader br = new BufferedReader(
+								new InputStreamReader(sockets.get(i).getInputStream(), StandardCharsets.UTF_8));
+						String answer = br.readLine();
+						if (answer == null) {
+							failures.incrementAndGet();
+						} else if (answer.startsWith("The server is busy")) {
+							rejected.incrementAndGet();
+						}
+						latencies[from + i] = System.nanoTime() - sent[i];
+					}
+				} catch (Exception e) {
+					failures.addAndGet(to - from - sockets.size());
+					System.out.println(mode + ": " + e.getMessage());
+				} finally {
+					for (Socket socket : sockets) {
+						try {
+							socket.close();
+						} catch (IOException e) {
+							// The socket is not needed anymore
+						}
+					}
+				}
+			});
+			clients.add(client);
+			client.start();
+		}
+		connected.await();
+		long start = System.nanoTime();
+		for (Thread client : clients) {
+			client.join();
+		}
+		long elapsed = System.nanoTime() - start - idle * 1000000;
+		server.stop();
+		store.close();
+
+		Arrays.sort(latencies);
+		System.out.printf(
+				"%s: %d connections, %d failures, %d rejected, %.0f requests/s, p50 %.2f ms, p99 %.2f ms, max %.2f ms%n",
+				mode, connections, failures.get(), rejected.get(), connections / (elapsed / 1e9), percentile(latencies, 0.5),
+				percentile(latencies, 0.99), latencies[latencies.length - 1] / 1e6);
+		Thread.sleep(500);
+	}
+
+	/**
+	 * Gets a percentile of sorted latencies.
+	 * 
+	 * @param latencies
+	 *            Sorted latencies in nanoseconds
+	 * @param p
+	 *            Percentile between 0 and 1
+	 * @return Latency in milliseconds
+	 */
+	private static double percentile(long[] latencies, double p) {
+		return latencies[(int) Math.min(latencies.length - 1, Math.round(p * latencies.length))] / 1e6;
+	}
+}
@@ -0,0 +1,251 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import server.LatencyHistogram;
+
+/**
+ * Generates load against a running server. Opens a number of concurrent
+ * clients which send a mix of 'get' and 'add' commands against the given
+ * levels, each waiting for the answer before sending the next command. Each
+ * 'add' uses a new user name, so that it is accepted. Afterwards, the
+ * throughput and the latency percentiles per command are printed, whereby the
+ * requests of the warmup are not measured.
+ * 
+ * @author Rune Krauss
+ * @author Steffen Gerken
+ * @author Niels Arbatschat
+ */
+public class LoadGenerator {
+
+	/** Names of the measured commands */
+	private static final String[] COMMANDS = { "get", "add" };
+
+	/** Percentiles to print */
+	private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+
+	/** Host of the server */
+	private static String host = "localhost";
+
+	/** Port of the server */
+	private static int port = 55555;
+
+	/** Number of concurrent clients */
+	private static int clients = 50;
+
+	/** Time in seconds to measure */
+	private static int duration = 10;
+
+	/** Time in seconds before measuring */
+	private static int warmup = 2;
+
+	/** Percentage of 'add' commands */
+	private static int adds = 10;
+
+	/** Levels to send commands to */
+	private static String[] levels = { "level1" };
+
+	/** Latencies per command */
+	private static final LatencyHistogram[] latencies = { new LatencyHistogram(), new LatencyHistogram() };
+
+	/** Maximum latency per command */
+	private static final LongAccumulator[] maxLatencies = { new LongAccumulator(Math::max, 0),
+			new LongAccumulator(Math::max, 0) };
+
+	/** Number of unexpected answers or broken connections */
+	private static final LongAdder errors = new LongAdder();
+
+	/** Number of connections the server rejected as busy */
+	private static final LongAdder rejected = new LongAdder();
+
+	/** Number of requests the server did not answer due to the rate limit */
+	private static final LongAdder limited = new LongAdder();
+
+	/**
+	 * Runs the clients and prints the results.
+	 * 
+	 * @param args
+	 *            Options like '-clients 100 -duration 30 -adds 20'
+	 * @throws Exception
+	 *             If the load cannot be generated, this exception will be
+	 *             expected.
+	 */
+	public static void main(String args[]) throws Exception {
+		try {
+			configure(args);
+		} catch (IllegalArgumentException e) {
+			System.out.println(e.getMessage());
+			return;
+		}
+		String run = Long.toString(System.currentTimeMillis(), 36);
+		long measureStart = System.nanoTime() + warmup * 1000000000L;
+		long end = measureStart + duration * 1000000000L;
+		List<Thread> threads = new ArrayList<>();
+		for (int c = 0; c < clients; ++c) {
+			String userPrefix = "load-" + run + "-" + c + "-";
+			Thread thread = new Thread(() -> runClient(userPrefix, measureStart, end), "load-client-" + c);
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		print();
+	}
+
+	/**
+	 * Configures the load by means of options.
+	 * 
+	 * @param args
+	 *            Command line parameters
+	 */
+	private static void configure(String args[]) {
+		for (int i = 0; i < args.length; i += 2) {
+			if (i + 1 >= args.length) {
+				throw new IllegalArgumentException("The option '" + args[i] + "' needs a value.");
+			}
+			String value = args[i + 1];
+			switch (args[i]) {
+			case "-host":
+				host = value;
+				break;
+			case "-port":
+				port = Integer.parseInt(value);
+				break;
+			case "-clients":
+				clients = Integer.parseInt(value);
+				break;
+			case "-duration":
+				duration = Integer.parseInt(value);
+				break;
+			case "-warmup":
+				warmup = Integer.parseInt(value);
+				break;
+			case "-adds":
+				adds = Integer.parseInt(value);
+				if (adds < 0 || adds > 100) {
+					throw new IllegalArgumentException("The option '-adds' needs a percentage between 0 and 100.");
+				}
+				break;
+			case "-levels":
+				levels = value.split(",");
+				break;
+			default:
+				throw new IllegalArgumentException("The option '" + args[i] + "' is unknown.");
+			}
+		}
+		if (clients < 1 || duration < 1 || warmup < 0) {
+			throw new IllegalArgumentException("The clients and the duration must be positive, the warmup must not be negative.");
+		}
+	}
+
+	/**
+	 * Sends commands over one connection until the end. A connection which
+	 * the server has closed or rejected is opened again.
+	 * 
+	 * @param userPrefix
+	 *            Prefix of the user names of the client
+	 * @param measureStart
+	 *            Time in nanoseconds after which the latencies are measured
+	 * @param end
+	 *            Time in nanoseconds at which the client stops
+	 */
+	private static void runClient(String userPrefix, long measureStart, long end) {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		long sequence = 0;
+		Socket socket = null;
+		InputStream input = null;
+		OutputStream output = null;
+		ByteArrayOutputStream answer = new ByteArrayOutputStream();
+		while (System.nanoTime() < end) {
+			try {
+				if (socket == null) {
+					socket = new Socket();
+					socket.connect(new InetSocketAddress(host, port));
+					socket.setTcpNoDelay(true);
+					input = new BufferedInputStream(socket.getInputStream());
+					output = new BufferedOutputStream(socket.getOutputStream());
+				}
+				int command = random.nextInt(100) < adds ? 1 : 0;
+				String level = levels[random.nextInt(levels.length)];
+				String line = command == 1 ? "add " + level + " " + userPrefix + sequence++ : "get " + level;
+				long start = System.nanoTime();
+				output.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+				output.flush();
+				answer.reset();
+				int b;
+				while ((b = input.read()) != '\n') {
+					if (b < 0) {
+						throw new IOException("The server has closed the connection.");
+					}
+					answer.write(b);
+				}
+				long stop = System.nanoTime();
+				String msg = answer.toString(StandardCharsets.UTF_8.name());
+				if (msg.startsWith("The server is busy")) {
+					rejected.increment();
+					socket.close();
+					socket = null;
+				} else if (msg.startsWith("The rate limit was exceeded")) {
+					limited.increment();
+				} else if (command == 1 ? !msg.equals("The user name was accepted.") : !msg.matches("\\d+")) {
+					errors.increment();
+				} else if (start >= measureStart) {
+					latencies[command].record(stop - start);
+					maxLatencies[command].accumulate(stop - start);
+				}
+			} catch (IOException e) {
+				errors.increment();
+				if (socket != null) {
+					try {
+						socket.close();
+					} catch (IOException ioe) {
+						// The socket is not needed anymore
+					}
+				}
+				socket = null;
+			}
+		}
+		if (socket != null) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// The socket is not needed anymore
+			}
+		}
+	}
+
+	/**
+	 * Prints the throughput and the latency percentiles in microseconds.
+	 */
+	private static void print() {
+		long total = 0;
+		for (LatencyHistogram histogram : latencies) {
+			total += histogram.count();
+		}
+		System.out.printf("%d clients against %s:%d for %d s, levels %s, %d%% adds%n", clients, host, port,
+				duration, Arrays.toString(levels), adds);
+		System.out.printf("%d requests, %.0f requests/s, %d errors, %d rejected, %d limited%n", total,
+				total / (double) duration, errors.sum(), rejected.sum(), limited.sum());
+		for (int i = 0; i < COMMANDS.length; ++i) {
+			StringBuilder msg = new StringBuilder(String.format("%-4s %d requests", COMMANDS[i], latencies[i].count()));
+			for (double percentile : PERCENTILES) {
+				msg.append(String.format(", p%s %.1f us", percentile == (int) percentile ? (int) percentile + ""
+						: percentile + "", latencies[i].percentile(percentile) / 1e3));
+			}
+			msg.append(String.format(", max %.1f us", maxLatencies[i].get() / 1e3));
+			System.out.println(msg);
+		}
+	}
+}
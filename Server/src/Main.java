@@ -1,8 +1,11 @@
 import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.Scanner;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
@@ -11,6 +14,10 @@ import javax.xml.transform.stream.StreamResult;
 import org.w3c.dom.Attr;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import server.LikeStore;
+import server.RateLimiter;
+import server.Replicator;
+import server.Router;
 import server.Server;
 
 /**
@@ -27,6 +34,15 @@ public class Main {
 	/** Path to the XML file */
 	private static final String XML_FILE = "level.xml";
 
+	/** Path to the journal of accepted likes */
+	private static final String JOURNAL_FILE = "level.journal";
+
+	/** Directory of the log of accepted likes */
+	private static final String LOG_DIRECTORY = "likes";
+
+	/** Status regarding the shutdown of the server */
+	private static boolean isShutDown;
+
 	/**
 	 * Starts and stops the server.
 	 * 
@@ -34,19 +50,172 @@ public class Main {
 	 *            Command line parameters
 	 */
 	public static void main(String args[]) {
-		Server server = new Server(55555);
-		File xmlFile = new File(XML_FILE);
-		if (!xmlFile.exists()) {
-			createXMLFile();
+		LikeStore store = new LikeStore(LOG_DIRECTORY);
+		Server server = new Server(55555, store);
+		try {
+			configure(server, store, args);
+		} catch (IllegalArgumentException e) {
+			System.out.println(e.getMessage());
+			return;
+		}
+		try {
+			if (!store.exists()) {
+				File xmlFile = new File(XML_FILE);
+				if (!xmlFile.exists()) {
+					createXMLFile();
+				}
+				store.importXML(XML_FILE, JOURNAL_FILE);
+			}
+			store.load();
+		} catch (XMLStreamException | IOException e) {
+			System.out.print(e.getMessage());
+			return;
 		}
 		new Thread(server).start();
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> shutDown(server, store), "shutdown"));
 		String stop;
 		input = new Scanner(System.in);
 		while (!(stop = input.nextLine()).equals("stop")) {
 			System.out.println("You entered '" + stop + "'.");
 			System.out.println("Input 'stop' to close the server.");
 		}
-		server.stop();
+		shutDown(server, store);
+	}
+
+	/**
+	 * Drains the server and closes the store afterwards, so that the likes of
+	 * the answered commands are synced to the disk. This happens only once,
+	 * either after the input 'stop' or when the process is terminated.
+	 * 
+	 * @param server
+	 *            Server to drain
+	 * @param store
+	 *            Store to close
+	 */
+	private static synchronized void shutDown(Server server, LikeStore store) {
+		if (isShutDown) {
+			return;
+		}
+		isShutDown = true;
+		server.drain();
+		try {
+			store.close();
+			System.out.println("Likes were synced...");
+		} catch (IOException e) {
+			System.out.print(e.getMessage());
+		}
+	}
+
+	/**
+	 * Configures the server and the store by means of options like '-mode
+	 * nio'.
+	 * 
+	 * @param server
+	 *            Server to configure
+	 * @param store
+	 *            Store to configure before loading
+	 * @param args
+	 *            Command line parameters
+	 */
+	private static void configure(Server server, LikeStore store, String args[]) {
+		String nodes = null;
+		String self = null;
+		boolean isForwarding = true;
+		String peers = null;
+		long replicationInterval = 100;
+		String budgets = null;
+		int limitedClients = 10000;
+		long commitDelay = -1;
+		int commitBatch = 256;
+		for (int i = 0; i < args.length; i += 2) {
+			if (i + 1 >= args.length) {
+				throw new IllegalArgumentException("The option '" + args[i] + "' needs a value.");
+			}
+			String value = args[i + 1];
+			switch (args[i]) {
+			case "-port":
+				server.setPort(Integer.parseInt(value));
+				break;
+			case "-mode":
+				server.setMode(Server.Mode.valueOf(value.toUpperCase()));
+				break;
+			case "-loops":
+				server.setEventLoops(Integer.parseInt(value));
+				break;
+			case "-idle":
+				server.setIdleTimeout(Long.parseLong(value));
+				break;
+			case "-queue":
+				server.setQueueCapacity(Integer.parseInt(value));
+				break;
+			case "-admission":
+				server.setAdmission(Server.Admission.valueOf("REJECT_" + value.toUpperCase()));
+				break;
+			case "-retry":
+				server.setRetryAfter(Long.parseLong(value));
+				break;
+			case "-push":
+				server.setPushInterval(Long.parseLong(value));
+				break;
+			case "-drain":
+				server.setDrainTimeout(Long.parseLong(value));
+				break;
+			case "-http":
+				server.setHttpPort(Integer.parseInt(value));
+				break;
+			case "-nodes":
+				nodes = value;
+				break;
+			case "-node":
+				self = value;
+				break;
+			case "-route":
+				if (!value.equals("forward") && !value.equals("redirect")) {
+					throw new IllegalArgumentException("The option '-route' needs 'forward' or 'redirect'.");
+				}
+				isForwarding = value.equals("forward");
+				break;
+			case "-peers":
+				peers = value;
+				break;
+			case "-replicate":
+				replicationInterval = Long.parseLong(value);
+				break;
+			case "-limit":
+				budgets = value;
+				break;
+			case "-limitclients":
+				limitedClients = Integer.parseInt(value);
+				break;
+			case "-commit":
+				commitDelay = Long.parseLong(value);
+				break;
+			case "-commitbatch":
+				commitBatch = Integer.parseInt(value);
+				break;
+			case "-bloom":
+				if (!value.equals("on") && !value.equals("off")) {
+					throw new IllegalArgumentException("The option '-bloom' needs 'on' or 'off'.");
+				}
+				store.setBloomFilter(value.equals("on"));
+				break;
+			default:
+				throw new IllegalArgumentException("The option '" + args[i] + "' is unknown.");
+			}
+		}
+		if (nodes != null) {
+			server.setRouter(new Router(Arrays.asList(nodes.split(",")),
+					self != null ? self : "localhost:" + server.getPort(), isForwarding));
+		}
+		if (commitDelay >= 0) {
+			store.setGroupCommit(commitDelay, commitBatch);
+		}
+		if (budgets != null) {
+			server.setRateLimiter(new RateLimiter(budgets, limitedClients));
+		}
+		if (peers != null) {
+			server.setReplicator(new Replicator(store, Arrays.asList(peers.split(",")), replicationInterval));
+		}
 	}
 
 	/**
@@ -0,0 +1,145 @@
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import server.LikeStore;
+
+/**
+ * Stresses the store with concurrent likes. Checks that no like is lost, that
+ * each duplicate is rejected and that batch reads never see half of a batch
+ * write. Furthermore, prints the throughput per number of threads.
+ * 
+ * @author Rune Krauss
+ * @author Steffen Gerken
+ * @author Niels Arbatschat
+ */
+public class Stress {
+
+	/** Number of levels */
+	private static final int LEVELS = 16;
+
+	/** Number of threads of the server pool */
+	private static final int POOL_SIZE = 50;
+
+	/**
+	 * Runs the stress test for increasing numbers of threads.
+	 * 
+	 * @param args
+	 *            Number of likes per thread
+	 * @throws Exception
+	 *             If the stress test fails, this exception will be expected.
+	 */
+	public static void main(String args[]) throws Exception {
+		int likes = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		List<Integer> threadCounts = new ArrayList<>();
+		for (int threads = 1; threads < Runtime.getRuntime().availableProcessors(); threads *= 2) {
+			threadCounts.add(threads);
+		}
+		threadCounts.add(Runtime.getRuntime().availableProcessors());
+		threadCounts.add(POOL_SIZE);
+		boolean passed = true;
+		for (int threads : threadCounts) {
+			passed &= run(threads, likes);
+		}
+		System.out.println(passed ? "Stress test passed." : "Stress test failed.");
+		if (!passed) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Lets threads add likes concurrently while a reader checks batch reads.
+	 * Each thread adds unique likes to all levels, adds a like which every
+	 * thread adds as well and adds pairs of likes to level1 and level2 in one
+	 * batch.
+	 * 
+	 * @param threads
+	 *            Number of threads
+	 * @param likes
+	 *            Number of likes per thread
+	 * @return Result of the checks
+	 * @throws Exception
+	 *             If the stress test fails, this exception will be expected.
+	 */
+	private static boolean run(int threads, int likes) throws Exception {
+		File dir = Files.createTempDirectory("stress").toFile();
+		File xmlFile = new File(dir, "level.xml");
+		StringBuilder xml = new StringBuilder("<levels>");
+		for (int i = 1; i <= LEVELS; ++i) {
+			xml.append("<level id=\"level").append(i).append("\"/>");
+		}
+		Files.write(xmlFile.toPath(), xml.append("</levels>").toString().getBytes(StandardCharsets.UTF_8));
+		LikeStore store = new LikeStore(new File(dir, "likes").getPath());
+		store.importXML(xmlFile.getPath(), new File(dir, "level.journal").getPath());
+		store.load();
+
+		AtomicInteger accepted = new AtomicInteger();
+		AtomicInteger sharedAccepted = new AtomicInteger();
+		AtomicInteger tornReads = new AtomicInteger();
+		AtomicInteger running = new AtomicInteger(threads);
+		Thread reader = new Thread(() -> {
+			List<String> pair = Arrays.asList("level1", "level2");
+			while (running.get() > 0) {
+				int[] counts = store.count(pair);
+				if (counts[0] != counts[1]) {
+					tornReads.incrementAndGet();
+				}
+			}
+		});
+		List<Thread> writers = new ArrayList<>();
+		for (int t = 0; t < threads; ++t) {
+			int id = t;
+			writers.add(new Thread(() -> {
+				try {
+					if (store.add("level" + LEVELS, "shared") == LikeStore.AddResult.ACCEPTED) {
+						sharedAccepted.incrementAndGet();
+					}
+					for (int i = 0; i < likes; ++i) {
+						String user = "user" + id + "-" + i;
+						if (i % 10 == 0) {
+							LikeStore.AddResult[] results = store.add(Arrays.asList("level1", "level2"),
+									Arrays.asList(user, user));
+							for (LikeStore.AddResult result : results) {
+								if (result == LikeStore.AddResult.ACCEPTED) {
+									accepted.incrementAndGet();
+								}
+							}
+						} else if (store.add("level" + (3 + i % (LEVELS - 3)), user) == LikeStore.AddResult.ACCEPTED) {
+							accepted.incrementAndGet();
+						}
+					}
+				} catch (Exception e) {
+					System.out.println(e.getMessage());
+				} finally {
+					running.decrementAndGet();
+				}
+			}));
+		}
+		long start = System.nanoTime();
+		reader.start();
+		for (Thread writer : writers) {
+			writer.start();
+		}
+		for (Thread writer : writers) {
+			writer.join();
+		}
+		long elapsed = System.nanoTime() - start;
+		reader.join();
+
+		int expected = threads * (likes + (likes + 9) / 10) + 1;
+		int stored = 0;
+		for (int count : store.countAll().values()) {
+			stored += count;
+		}
+		int[] pair = store.count(Arrays.asList("level1", "level2"));
+		store.close();
+		boolean passed = stored == expected && accepted.get() + sharedAccepted.get() == expected
+				&& sharedAccepted.get() == 1 && pair[0] == pair[1] && tornReads.get() == 0;
+		System.out.printf("%d threads: %d likes stored of %d expected, %d torn reads, %.0f likes/s, %s%n", threads,
+				stored, expected, tornReads.get(), stored / (elapsed / 1e9), passed ? "passed" : "failed");
+		return passed;
+	}
+}
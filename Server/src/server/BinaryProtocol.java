@@ -0,0 +1,538 @@
+package server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Represents the binary protocol of this game. A client selects it by sending
+ * the magic byte first. Afterwards, each request and each answer is a frame
+ * consisting of its length as varint and its payload. A request starts with an
+ * opcode followed by varint level numbers, e.g. 1 for 'level1'. An answer
+ * starts with a status followed by varint counts.
+ * 
+ * <ul>
+ * <li>GET level: OK count</li>
+ * <li>ADD level name: OK, EXISTS or NO_LEVEL</li>
+ * <li>MGET n level...: OK n count...</li>
+ * <li>GETALL: OK n (level count)...</li>
+ * <li>WATCH n level...: OK n count...</li>
+ * <li>LIKED name: OK n level...</li>
+ * </ul>
+ * 
+ * A request exceeding the rate limit of the client is answered LIMITED
+ * followed by the time in milliseconds after which the client should retry.
+ * 
+ * After WATCH, the server pushes frames PUSH n (level count)... with the
+ * counts which changed, at most once per push interval. In a cluster, GET, ADD
+ * and MGET regarding levels of other nodes are answered by their owners or
+ * INVALID if an owner is not reachable, GETALL and LIKED only regard the
+ * levels of this node and WATCH is answered INVALID for levels of other nodes.
+ * 
+ * @author Rune Krauss
+ * @author Steffen Gerken
+ * @author Niels Arbatschat
+ */
+public class BinaryProtocol {
+
+	/** First byte of a connection regarding the binary protocol */
+	public static final int MAGIC = 0xFE;
+
+	/** Maximum length of a frame */
+	public static final int MAX_FRAME = 512;
+
+	/** Opcode to count the likes of a level */
+	public static final int GET = 1;
+
+	/** Opcode to add a like */
+	public static final int ADD = 2;
+
+	/** Opcode to count the likes of several levels */
+	public static final int MGET = 3;
+
+	/** Opcode to count the likes of all levels */
+	public static final int GETALL = 4;
+
+	/** Opcode to push the likes of levels whenever they change */
+	public static final int WATCH = 5;
+
+	/** Opcode to answer the levels which a user likes */
+	public static final int LIKED = 6;
+
+	/** Status regarding a successful request */
+	public static final int OK = 0;
+
+	/** Status regarding an existing user name */
+	public static final int EXISTS = 1;
+
+	/** Status regarding an unknown level */
+	public static final int NO_LEVEL = 2;
+
+	/** Status regarding an invalid request */
+	public static final int INVALID = 3;
+
+	/** Status of a frame pushed regarding watched levels */
+	public static final int PUSH = 4;
+
+	/** Status regarding a request exceeding the rate limit */
+	public static final int LIMITED = 5;
+
+	/** Status regarding a request which is not offered by the server */
+	public static final int UNAVAILABLE = 6;
+
+	/** Prefix of the level IDs */
+	private static final String LEVEL_PREFIX = "level";
+
+	/** Likes of all levels */
+	protected LikeStore store;
+
+	/** Metrics of the server */
+	protected Metrics metrics;
+
+	/** Routing of the levels to the nodes or null if this node owns all levels */
+	protected Router router;
+
+	/** Whether levels may be watched */
+	protected boolean isWatching = true;
+
+	/**
+	 * Constructor of the protocol which initializes the attributes.
+	 * 
+	 * @param store
+	 *            Likes of all levels
+	 * @param metrics
+	 *            Metrics of the server
+	 */
+	public BinaryProtocol(LikeStore store, Metrics metrics) {
+		this.store = store;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Sets the routing of the levels to the nodes of a cluster.
+	 * 
+	 * @param router
+	 *            Routing of the levels
+	 */
+	public void setRouter(Router router) {
+		this.router = router;
+	}
+
+	/**
+	 * Answers the payload of a request frame and records its latency.
+	 * 
+	 * @param payload
+	 *            Payload of the request frame
+	 * @param watch
+	 *            Levels watched by the connection
+	 * @return Answer frame including its length
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	public byte[] answer(ByteBuffer payload, Watch watch) throws IOException {
+		long start = System.nanoTime();
+		int command = Metrics.INVALID;
+		ByteArrayOutputStream msg = new ByteArrayOutputStream();
+		try {
+			switch (payload.get()) {
+			case GET:
+				command = Command.GET;
+				int level = readLevel(payload);
+				int count = isRemote(level) ? router.count(LEVEL_PREFIX + level) : store.count(level);
+				if (count < 0) {
+					command = Metrics.INVALID;
+					msg.write(INVALID);
+					break;
+				}
+				msg.write(OK);
+				writeVarint(msg, count);
+				break;
+			case ADD:
+				command = Command.ADD;
+				level = readLevel(payload);
+				String user = StandardCharsets.UTF_8.decode(payload).toString().trim();
+				if (user.isEmpty() || user.indexOf('\n') >= 0) {
+					command = Metrics.INVALID;
+					msg.write(INVALID);
+					break;
+				}
+				LikeStore.AddResult result = isRemote(level) ? router.add(LEVEL_PREFIX + level, user)
+						: store.add(level, user);
+				if (result == null) {
+					msg.write(INVALID);
+					break;
+				}
+				switch (result) {
+				case EXISTS:
+					msg.write(EXISTS);
+					break;
+				case NO_LEVEL:
+					msg.write(NO_LEVEL);
+					break;
+				default:
+					msg.write(OK);
+				}
+				break;
+			case MGET:
+				command = Command.MGET;
+				int n = readLength(payload);
+				List<String> levelList = new ArrayList<>(Math.min(n, payload.remaining()));
+				List<Integer> remote = new ArrayList<>();
+				for (int i = 0; i < n; ++i) {
+					int number = readLevel(payload);
+					if (isRemote(number)) {
+						remote.add(i);
+					}
+					levelList.add(LEVEL_PREFIX + number);
+				}
+				int[] counts = store.count(levelList);
+				boolean isCounted = true;
+				for (int i = 0; isCounted && i < remote.size(); ++i) {
+					counts[remote.get(i)] = router.count(levelList.get(remote.get(i)));
+					isCounted = counts[remote.get(i)] >= 0;
+				}
+				if (!isCounted) {
+					command = Metrics.INVALID;
+					msg.write(INVALID);
+					break;
+				}
+				msg.write(OK);
+				writeVarint(msg, n);
+				for (int c : counts) {
+					writeVarint(msg, c);
+				}
+				break;
+			case GETALL:
+				command = Command.GETALL;
+				List<int[]> all = new ArrayList<>();
+				for (Map.Entry<String, Integer> entry : store.countAll().entrySet()) {
+					String id = entry.getKey();
+					if ((router == null || router.isLocal(id)) && id.startsWith(LEVEL_PREFIX) && id.length() > LEVEL_PREFIX.length()
+							&& id.substring(LEVEL_PREFIX.length()).chars().allMatch(Character::isDigit)) {
+						all.add(new int[] { Integer.parseInt(id.substring(LEVEL_PREFIX.length())), entry.getValue() });
+					}
+				}
+				msg.write(OK);
+				writeVarint(msg, all.size());
+				for (int[] pair : all) {
+					writeVarint(msg, pair[0]);
+					writeVarint(msg, pair[1]);
+				}
+				break;
+			case WATCH:
+				command = Command.WATCH;
+				if (!isWatching) {
+					msg.write(UNAVAILABLE);
+					break;
+				}
+				n = readLength(payload);
+				if (n > Watch.MAX_LEVELS) {
+					throw new IllegalArgumentException("Too many levels are watched.");
+				}
+				msg.write(OK);
+				writeVarint(msg, n);
+				for (int i = 0; i < n; ++i) {
+					int number = readLevel(payload);
+					if (isRemote(number)) {
+						throw new IllegalArgumentException("The level is owned by another node.");
+					}
+					count = store.count(number);
+					if (!watch.add(LEVEL_PREFIX + number, number, count)) {
+						throw new IllegalArgumentException("Too many levels are watched.");
+					}
+					writeVarint(msg, count);
+				}
+				break;
+			case LIKED:
+				command = Command.LIKED;
+				user = StandardCharsets.UTF_8.decode(payload).toString().trim();
+				if (user.isEmpty()) {
+					command = Metrics.INVALID;
+					msg.write(INVALID);
+					break;
+				}
+				List<Integer> numbers = new ArrayList<>();
+				for (String id : store.liked(user, router == null ? null : router::isLocal)) {
+					if (id.startsWith(LEVEL_PREFIX) && id.length() > LEVEL_PREFIX.length()
+							&& id.substring(LEVEL_PREFIX.length()).chars().allMatch(Character::isDigit)) {
+						numbers.add(Integer.parseInt(id.substring(LEVEL_PREFIX.length())));
+					}
+				}
+				msg.write(OK);
+				writeVarint(msg, numbers.size());
+				for (int number : numbers) {
+					writeVarint(msg, number);
+				}
+				break;
+			default:
+				msg.reset();
+				msg.write(INVALID);
+			}
+		} catch (BufferUnderflowException | IllegalArgumentException e) {
+			command = Metrics.INVALID;
+			msg.reset();
+			msg.write(INVALID);
+		}
+		metrics.record(command, System.nanoTime() - start);
+		return frame(msg);
+	}
+
+	/**
+	 * Reads the number of a level. A varint of five bytes can be decoded to a
+	 * negative int, which is not a level.
+	 * 
+	 * @param payload
+	 *            Payload of the request frame
+	 * @return Non-negative number of the level
+	 */
+	private static int readLevel(ByteBuffer payload) {
+		int number = readVarint(payload);
+		if (number < 0) {
+			throw new IllegalArgumentException("The level number is negative.");
+		}
+		return number;
+	}
+
+	/**
+	 * Reads the number of levels of a request.
+	 * 
+	 * @param payload
+	 *            Payload of the request frame
+	 * @return Non-negative number of levels
+	 */
+	private static int readLength(ByteBuffer payload) {
+		int n = readVarint(payload);
+		if (n < 0) {
+			throw new IllegalArgumentException("The number of levels is negative.");
+		}
+		return n;
+	}
+
+	/**
+	 * Sets whether levels may be watched. Without it, WATCH is answered with
+	 * the status UNAVAILABLE, so that the client polls instead.
+	 * 
+	 * @param isWatching
+	 *            Whether levels may be watched
+	 */
+	public void setWatching(boolean isWatching) {
+		this.isWatching = isWatching;
+	}
+
+	/**
+	 * Checks whether levels may be watched.
+	 * 
+	 * @return Result of the check
+	 */
+	public boolean isWatching() {
+		return isWatching;
+	}
+
+	/**
+	 * Checks whether a request has to be forwarded to another node, so that
+	 * answering it blocks until the owner answers. The payload is not
+	 * consumed and an invalid request is not forwarded.
+	 * 
+	 * @param payload
+	 *            Payload of the request frame
+	 * @return Result of the check
+	 */
+	public boolean isForwarded(ByteBuffer payload) {
+		if (router == null || !router.isForwarding()) {
+			return false;
+		}
+		ByteBuffer request = payload.duplicate();
+		try {
+			switch (request.get()) {
+			case GET:
+			case ADD:
+				return isRemote(readLevel(request));
+			case MGET:
+				for (int i = readLength(request); i > 0; --i) {
+					if (isRemote(readLevel(request))) {
+						return true;
+					}
+				}
+				return false;
+			default:
+				return false;
+			}
+		} catch (BufferUnderflowException | IllegalArgumentException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Checks whether a numbered level belongs to another node.
+	 * 
+	 * @param number
+	 *            Number of the level
+	 * @return Result of the check
+	 */
+	private boolean isRemote(int number) {
+		return router != null && !router.isLocal(number);
+	}
+
+	/**
+	 * Creates a push frame regarding the watched levels whose likes changed
+	 * since they were pushed last.
+	 * 
+	 * @param watch
+	 *            Levels watched by the connection
+	 * @return Push frame including its length or null if nothing changed
+	 */
+	public byte[] push(Watch watch) {
+		List<int[]> changes = new ArrayList<>();
+		for (int i = 0; i < watch.size(); ++i) {
+			int number = watch.getNumber(i);
+			int count = number != Command.NO_NUMBER ? store.count(number) : store.count(watch.getLevel(i));
+			if (watch.update(i, count)) {
+				changes.add(new int[] { number, count });
+			}
+		}
+		if (changes.isEmpty()) {
+			return null;
+		}
+		ByteArrayOutputStream msg = new ByteArrayOutputStream();
+		msg.write(PUSH);
+		writeVarint(msg, changes.size());
+		for (int[] change : changes) {
+			writeVarint(msg, change[0]);
+			writeVarint(msg, change[1]);
+		}
+		return frame(msg);
+	}
+
+	/**
+	 * Answers that a request exceeds the rate limit of the client instead of
+	 * answering it and records this.
+	 * 
+	 * @param retryAfter
+	 *            Time in milliseconds after which the client should retry
+	 * @return Answer frame including its length
+	 */
+	public byte[] limited(long retryAfter) {
+		metrics.requestLimited();
+		ByteArrayOutputStream msg = new ByteArrayOutputStream();
+		msg.write(LIMITED);
+		writeVarint(msg, (int) Math.min(retryAfter, Integer.MAX_VALUE));
+		return frame(msg);
+	}
+
+	/**
+	 * Looks up the verb of a request by its opcode without reading the
+	 * payload, e.g. to limit the rate of a request before answering it.
+	 * 
+	 * @param payload
+	 *            Payload of the request frame
+	 * @return Verb of the command or -1 if the opcode is unknown
+	 */
+	public static int peekVerb(ByteBuffer payload) {
+		if (!payload.hasRemaining()) {
+			return -1;
+		}
+		switch (payload.get(payload.position())) {
+		case GET:
+			return Command.GET;
+		case ADD:
+			return Command.ADD;
+		case MGET:
+			return Command.MGET;
+		case GETALL:
+			return Command.GETALL;
+		case WATCH:
+			return Command.WATCH;
+		case LIKED:
+			return Command.LIKED;
+		default:
+			return -1;
+		}
+	}
+
+	/**
+	 * Prefixes a payload with its length.
+	 * 
+	 * @param msg
+	 *            Payload of the frame
+	 * @return Frame including its length
+	 */
+	private static byte[] frame(ByteArrayOutputStream msg) {
+		ByteArrayOutputStream frame = new ByteArrayOutputStream(msg.size() + 5);
+		writeVarint(frame, msg.size());
+		frame.write(msg.toByteArray(), 0, msg.size());
+		return frame.toByteArray();
+	}
+
+	/**
+	 * Reads an unsigned varint of at most five bytes from a buffer.
+	 * 
+	 * @param buffer
+	 *            Buffer to read from
+	 * @return Value of the varint
+	 * @throws BufferUnderflowException
+	 *             If the varint is incomplete, this exception will be expected.
+	 * @throws IllegalArgumentException
+	 *             If the varint is too long, this exception will be expected.
+	 */
+	public static int readVarint(ByteBuffer buffer) {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			byte b = buffer.get();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IllegalArgumentException("The varint is too long.");
+	}
+
+	/**
+	 * Reads an unsigned varint of at most five bytes from a stream.
+	 * 
+	 * @param input
+	 *            Stream to read from
+	 * @return Value of the varint or -1 if the stream ended before it
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	public static int readVarint(InputStream input) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			int b = input.read();
+			if (b < 0) {
+				if (shift == 0) {
+					return -1;
+				}
+				throw new EOFException("The varint is incomplete.");
+			}
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("The varint is too long.");
+	}
+
+	/**
+	 * Writes an unsigned varint.
+	 * 
+	 * @param output
+	 *            Stream to write to
+	 * @param value
+	 *            Non-negative value
+	 */
+	public static void writeVarint(ByteArrayOutputStream output, int value) {
+		while ((value & ~0x7F) != 0) {
+			output.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		output.write(value);
+	}
+}
@@ -0,0 +1,477 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Represents a command of the text protocol which is decoded directly from the
+ * bytes of a line. The command is reused for every line of a connection and
+ * only refers to the ranges of the line, so decoding neither compiles a regex
+ * nor creates strings. Level IDs of the form 'level' followed by a number are
+ * decoded to that number. The grammar matches the former regexes:
+ * 
+ * <ul>
+ * <li>get levelN [name], add levelN [name]</li>
+ * <li>mget levelN..., getall, madd levelN name; levelM name...</li>
+ * <li>stats, watch levelN...</li>
+ * <li>merge levelN name</li>
+ * <li>top N, liked name</li>
+ * </ul>
+ * 
+ * @author Rune Krauss
+ * @author Steffen Gerken
+ * @author Niels Arbatschat
+ */
+public class Command {
+
+	/** Verb to count the likes of a level */
+	public static final int GET = 0;
+
+	/** Verb to add a like */
+	public static final int ADD = 1;
+
+	/** Verb to count the likes of several levels */
+	public static final int MGET = 2;
+
+	/** Verb to count the likes of all levels */
+	public static final int GETALL = 3;
+
+	/** Verb to add several likes */
+	public static final int MADD = 4;
+
+	/** Verb to answer the metrics of the server */
+	public static final int STATS = 5;
+
+	/** Verb to push the likes of levels whenever they change */
+	public static final int WATCH = 6;
+
+	/** Verb to merge a like which another node has accepted */
+	public static final int MERGE = 7;
+
+	/** Verb to answer the levels with the most likes */
+	public static final int TOP = 8;
+
+	/** Verb to answer the levels which a user likes */
+	public static final int LIKED = 9;
+
+	/** Verbs in the order of their constants */
+	private static final byte[][] VERBS = { bytes("get"), bytes("add"), bytes("mget"), bytes("getall"),
+			bytes("madd"), bytes("stats"), bytes("watch"), bytes("merge"), bytes("top"),
+			bytes("liked") };
+
+	/** Number of verbs */
+	public static final int VERB_COUNT = VERBS.length;
+
+	/** Prefix of the level IDs */
+	private static final byte[] LEVEL_PREFIX = bytes("level");
+
+	/** Level number if an ID cannot be decoded to a number */
+	public static final int NO_NUMBER = -1;
+
+	/** Line of the command */
+	private byte[] line;
+
+	/** Verb of the command */
+	private int verb;
+
+	/** Number of levels */
+	private int levels;
+
+	/** Numbers of the levels */
+	private int[] numbers = new int[4];
+
+	/** Start and end of the level IDs in the line */
+	private int[] levelRanges = new int[8];
+
+	/** Start and end of the user names in the line or -1 if there is none */
+	private int[] userRanges = new int[8];
+
+	/** Number of levels requested by 'top' */
+	private int limit;
+
+	/**
+	 * Decodes a line. Leading and trailing white space is ignored.
+	 * 
+	 * @param line
+	 *            Bytes containing the line
+	 * @param offset
+	 *            Start of the line
+	 * @param length
+	 *            Length of the line
+	 * @return Whether the line is a valid command
+	 */
+	public boolean decode(byte[] line, int offset, int length) {
+		this.line = line;
+		this.levels = 0;
+		int end = offset + length;
+		while (offset < end && (line[offset] & 0xFF) <= ' ') {
+			++offset;
+		}
+		while (end > offset && (line[end - 1] & 0xFF) <= ' ') {
+			--end;
+		}
+		int verbEnd = offset;
+		while (verbEnd < end && !isSpace(line[verbEnd])) {
+			++verbEnd;
+		}
+		verb = -1;
+		for (int i = 0; i < VERBS.length; ++i) {
+			if (equalsIgnoreCase(line, offset, verbEnd, VERBS[i])) {
+				verb = i;
+				break;
+			}
+		}
+		switch (verb) {
+		case GET:
+		case ADD:
+			return verbEnd < end && decodeRecord(verbEnd + 1, end, false);
+		case MERGE:
+			return verbEnd < end && decodeRecord(verbEnd + 1, end, true);
+		case MGET:
+		case WATCH:
+			return verbEnd < end && decodeLevels(verbEnd + 1, end);
+		case GETALL:
+		case STATS:
+			return verbEnd == end;
+		case MADD:
+			return verbEnd < end && decodeRecords(verbEnd + 1, end);
+		case TOP:
+			return verbEnd < end && decodeLimit(verbEnd + 1, end);
+		case LIKED:
+			return verbEnd < end && decodeUser(verbEnd + 1, end);
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Looks up the verb of a line without decoding its arguments, e.g. to
+	 * limit the rate of a command before answering it.
+	 * 
+	 * @param line
+	 *            Bytes containing the line
+	 * @param offset
+	 *            Start of the line
+	 * @param length
+	 *            Length of the line
+	 * @return Verb of the line or -1 if it starts with an unknown word
+	 */
+	public static int peekVerb(byte[] line, int offset, int length) {
+		int end = offset + length;
+		while (offset < end && (line[offset] & 0xFF) <= ' ') {
+			++offset;
+		}
+		int verbEnd = offset;
+		while (verbEnd < end && !isSpace(line[verbEnd])) {
+			++verbEnd;
+		}
+		for (int i = 0; i < VERBS.length; ++i) {
+			if (equalsIgnoreCase(line, offset, verbEnd, VERBS[i])) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Gets the verb.
+	 * 
+	 * @return Verb of the command
+	 */
+	public int getVerb() {
+		return verb;
+	}
+
+	/**
+	 * Gets the number of levels.
+	 * 
+	 * @return Number of levels
+	 */
+	public int getLevels() {
+		return levels;
+	}
+
+	/**
+	 * Gets the number of levels requested by 'top'.
+	 * 
+	 * @return Number of levels
+	 */
+	public int getLimit() {
+		return limit;
+	}
+
+	/**
+	 * Gets the number of a level, e.g. 1 regarding 'level1'.
+	 * 
+	 * @param i
+	 *            Index of the level
+	 * @return Number of the level or NO_NUMBER if the ID has to be used
+	 */
+	public int getNumber(int i) {
+		return numbers[i];
+	}
+
+	/**
+	 * Gets the ID of a level as it was sent.
+	 * 
+	 * @param i
+	 *            Index of the level
+	 * @return ID of the level
+	 */
+	public String getLevel(int i) {
+		return new String(line, levelRanges[2 * i], levelRanges[2 * i + 1] - levelRanges[2 * i],
+				StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Checks whether a user name was sent regarding a level.
+	 * 
+	 * @param i
+	 *            Index of the level
+	 * @return Existence of the user name
+	 */
+	public boolean hasUser(int i) {
+		return userRanges[2 * i] >= 0;
+	}
+
+	/**
+	 * Gets the user name regarding a level. The user name of 'liked' has the
+	 * index 0.
+	 * 
+	 * @param i
+	 *            Index of the level
+	 * @return Name of the user
+	 */
+	public String getUser(int i) {
+		return new String(line, userRanges[2 * i], userRanges[2 * i + 1] - userRanges[2 * i],
+				StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Decodes the records of 'madd' which are separated by semicolons. Each
+	 * record needs a user name. Trailing semicolons are ignored.
+	 * 
+	 * @param start
+	 *            Start of the records
+	 * @param end
+	 *            End of the records
+	 * @return Validity of the records
+	 */
+	private boolean decodeRecords(int start, int end) {
+		while (end > start && line[end - 1] == ';') {
+			--end;
+		}
+		while (start <= end) {
+			int separator = start;
+			while (separator < end && line[separator] != ';') {
+				++separator;
+			}
+			int recordStart = start;
+			int recordEnd = separator;
+			while (recordStart < recordEnd && (line[recordStart] & 0xFF) <= ' ') {
+				++recordStart;
+			}
+			while (recordEnd > recordStart && (line[recordEnd - 1] & 0xFF) <= ' ') {
+				--recordEnd;
+			}
+			if (!decodeRecord(recordStart, recordEnd, true)) {
+				return false;
+			}
+			start = separator + 1;
+		}
+		return true;
+	}
+
+	/**
+	 * Decodes a level ID which is optionally followed by a white space and a
+	 * user name.
+	 * 
+	 * @param start
+	 *            Start of the level ID
+	 * @param end
+	 *            End of the record
+	 * @param needsUser
+	 *            Whether the user name is mandatory
+	 * @return Validity of the record
+	 */
+	private boolean decodeRecord(int start, int end, boolean needsUser) {
+		int levelEnd = decodeLevel(start, end);
+		if (levelEnd < 0) {
+			return false;
+		}
+		if (levelEnd == end) {
+			return !needsUser;
+		}
+		if (!isSpace(line[levelEnd]) || (needsUser && levelEnd + 1 == end)) {
+			return false;
+		}
+		int userStart = levelEnd + 1;
+		while (userStart < end && (line[userStart] & 0xFF) <= ' ') {
+			++userStart;
+		}
+		if (userStart < end) {
+			userRanges[2 * levels - 2] = userStart;
+			userRanges[2 * levels - 1] = end;
+		}
+		return true;
+	}
+
+	/**
+	 * Decodes the level IDs of 'mget' and 'watch' which are separated by white space.
+	 * 
+	 * @param start
+	 *            Start of the level IDs
+	 * @param end
+	 *            End of the level IDs
+	 * @return Validity of the level IDs
+	 */
+	private boolean decodeLevels(int start, int end) {
+		while (start < end && isSpace(line[start])) {
+			++start;
+		}
+		do {
+			int levelEnd = decodeLevel(start, end);
+			if (levelEnd < 0 || (levelEnd < end && !isSpace(line[levelEnd]))) {
+				return false;
+			}
+			start = levelEnd;
+			while (start < end && isSpace(line[start])) {
+				++start;
+			}
+		} while (start < end);
+		return true;
+	}
+
+	/**
+	 * Decodes the user name of 'liked', which is kept at the index 0 without
+	 * a level.
+	 * 
+	 * @param start
+	 *            Start of the user name
+	 * @param end
+	 *            End of the line
+	 * @return Validity of the user name
+	 */
+	private boolean decodeUser(int start, int end) {
+		while (start < end && (line[start] & 0xFF) <= ' ') {
+			++start;
+		}
+		userRanges[0] = start;
+		userRanges[1] = end;
+		return start < end;
+	}
+
+	/**
+	 * Decodes the positive number of levels requested by 'top'. Numbers
+	 * exceeding the range of an int are limited to it.
+	 * 
+	 * @param start
+	 *            Start of the number
+	 * @param end
+	 *            End of the line
+	 * @return Validity of the number
+	 */
+	private boolean decodeLimit(int start, int end) {
+		while (start < end && isSpace(line[start])) {
+			++start;
+		}
+		if (start == end) {
+			return false;
+		}
+		long number = 0;
+		for (int i = start; i < end; ++i) {
+			if (line[i] < '0' || line[i] > '9') {
+				return false;
+			}
+			number = Math.min(number * 10 + line[i] - '0', Integer.MAX_VALUE);
+		}
+		limit = (int) number;
+		return limit > 0;
+	}
+
+	/**
+	 * Decodes a level ID consisting of 'level' and digits and adds it.
+	 * 
+	 * @param start
+	 *            Start of the level ID
+	 * @param end
+	 *            End of the line
+	 * @return End of the level ID or -1 if there is none
+	 */
+	private int decodeLevel(int start, int end) {
+		int digits = start + LEVEL_PREFIX.length;
+		if (digits > end || !equalsIgnoreCase(line, start, digits, LEVEL_PREFIX)) {
+			return -1;
+		}
+		int levelEnd = digits;
+		long number = 0;
+		while (levelEnd < end && line[levelEnd] >= '0' && line[levelEnd] <= '9') {
+			number = Math.min(number * 10 + line[levelEnd] - '0', Integer.MAX_VALUE + 1L);
+			++levelEnd;
+		}
+		if (levelEnd == digits) {
+			return -1;
+		}
+		boolean isCanonical = line[start] == 'l' && line[start + 1] == 'e' && line[start + 2] == 'v'
+				&& line[start + 3] == 'e' && line[start + 4] == 'l' && (line[digits] != '0' || levelEnd == digits + 1)
+				&& number <= Integer.MAX_VALUE;
+		if (levels == numbers.length) {
+			numbers = Arrays.copyOf(numbers, levels * 2);
+			levelRanges = Arrays.copyOf(levelRanges, levels * 4);
+			userRanges = Arrays.copyOf(userRanges, levels * 4);
+		}
+		numbers[levels] = isCanonical ? (int) number : NO_NUMBER;
+		levelRanges[2 * levels] = start;
+		levelRanges[2 * levels + 1] = levelEnd;
+		userRanges[2 * levels] = -1;
+		++levels;
+		return levelEnd;
+	}
+
+	/**
+	 * Checks whether a byte is a white space like '\s' of a regex.
+	 * 
+	 * @param b
+	 *            Byte to check
+	 * @return Result of the check
+	 */
+	private static boolean isSpace(byte b) {
+		return b == ' ' || (b >= '\t' && b <= '\r');
+	}
+
+	/**
+	 * Compares a range of bytes with a lower case word ignoring the case.
+	 * 
+	 * @param line
+	 *            Bytes containing the range
+	 * @param start
+	 *            Start of the range
+	 * @param end
+	 *            End of the range
+	 * @param word
+	 *            Lower case word
+	 * @return Result of the comparison
+	 */
+	private static boolean equalsIgnoreCase(byte[] line, int start, int end, byte[] word) {
+		if (end - start != word.length) {
+			return false;
+		}
+		for (int i = 0; i < word.length; ++i) {
+			if ((line[start + i] | 0x20) != word[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Encodes a word.
+	 * 
+	 * @param word
+	 *            Word to encode
+	 * @return Bytes of the word
+	 */
+	private static byte[] bytes(String word) {
+		return word.getBytes(StandardCharsets.US_ASCII);
+	}
+}
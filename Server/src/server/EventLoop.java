@@ -0,0 +1,810 @@
+package server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Represents an event loop of the server. Serves many clients with one thread
+ * by means of a selector instead of one thread per client. With group commit,
+ * the loop does not wait for accepted likes to be synced. Their answers and
+ * the later answers of the client wait in order until the group commit calls
+ * back, while the loop goes on serving all clients. Likewise, commands which
+ * are forwarded to other nodes are answered by an executor, so that the loop
+ * never waits for another node.
+ * 
+ * @author Rune Krauss
+ * @author Steffen Gerken
+ * @author Niels Arbatschat
+ */
+public class EventLoop implements Runnable {
+
+	/** Initial size of the buffers per connection */
+	private static final int BUFFER_SIZE = 1024;
+
+	/** Maximum number of pending answers before reading is paused */
+	private static final int MAX_PENDING = 64;
+
+	/** Longest time to block in the selector in milliseconds */
+	private static final long SELECT_TIMEOUT = 1000;
+
+	/** Selector regarding the registered clients */
+	protected Selector selector;
+
+	/** Protocol to answer commands */
+	protected Protocol protocol;
+
+	/** Protocol to answer binary frames */
+	protected BinaryProtocol binaryProtocol;
+
+	/** Metrics of the server */
+	protected Metrics metrics;
+
+	/** Likes of all levels */
+	protected LikeStore store;
+
+	/** Time in milliseconds after which an idle client is closed */
+	protected long idleTimeout;
+
+	/** Time in milliseconds between two pushes regarding watched levels */
+	protected long pushInterval;
+
+	/** Accepted clients which are not registered yet */
+	private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+
+	/** Status of the event loop */
+	private volatile boolean isStopped;
+
+	/** Status regarding the drain of the event loop */
+	private volatile boolean isDraining;
+
+	/** Command which is reused for each line since the loop has one thread */
+	private final Command command = new Command();
+
+	/** Answers to the lines of one read which are queued together */
+	private final ByteArrayOutputStream answers = new ByteArrayOutputStream(BUFFER_SIZE);
+
+	/** Rate limiting of the clients or null if they are not limited */
+	protected RateLimiter rateLimiter;
+
+	/** Replication knowing the peers or null if likes are not replicated */
+	protected Replicator replicator;
+
+	/** Executor answering the forwarded commands or null if the loop answers them */
+	protected Executor forwarder;
+
+	/** Clients whose waiting answers were completed by other threads */
+	private final Queue<SelectionKey> completed = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * Answer which waits for its likes to be synced, for the node it was
+	 * forwarded to or for an earlier answer
+	 */
+	private static final class Answer {
+
+		/** Bytes of the answer or null if the command could not be answered */
+		private byte[] bytes;
+
+		/** Whether the command is answered by the forwarder */
+		private boolean isForwarded;
+
+		/** Target of the commit regarding the likes of the answer or zero */
+		private long commit;
+
+		/** Whether the answer may be written once the earlier ones were */
+		private volatile boolean isDone;
+
+		/**
+		 * Constructor of the answer which initializes the attributes.
+		 * 
+		 * @param bytes
+		 *            Bytes of the answer
+		 */
+		private Answer(byte[] bytes) {
+			this.bytes = bytes;
+		}
+	}
+
+	/**
+	 * State of a connection regarding a client.
+	 */
+	private static class Connection {
+
+		/** Bytes read from the client which grow with longer lines */
+		private ByteBuffer readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+		/** Whether the rest of a line exceeding the maximum length is skipped */
+		private boolean isSkipping;
+
+		/** Answers to be written to the client in order */
+		private final Deque<ByteBuffer> writeQueue = new ArrayDeque<>();
+
+		/** Answers waiting to be written after the write queue in order */
+		private final Deque<Answer> waiting = new ArrayDeque<>();
+
+		/** Protocol of the client or null as long as nothing was received */
+		private Boolean isBinary;
+
+		/** Status regarding the end of the input */
+		private boolean isClosing;
+
+		/** Time of the last activity in milliseconds */
+		private long lastActive = System.currentTimeMillis();
+
+		/** Levels watched by the client */
+		private final Watch watch = new Watch();
+
+		/** Remote address of the client */
+		private InetAddress address;
+
+		/** Whether the client is a peer which may merge likes without limit */
+		private boolean isPeer;
+
+		/** Number of forwarded commands whose answers are waiting */
+		private int forwarded;
+
+		/** Last forwarded command, after which the next one is answered */
+		private CompletableFuture<Void> forwarding;
+	}
+
+	/**
+	 * Constructor of the event loop which initializes the attributes.
+	 * 
+	 * @param protocol
+	 *            Protocol to answer commands
+	 * @param binaryProtocol
+	 *            Protocol to answer binary frames
+	 * @param metrics
+	 *            Metrics of the server
+	 * @param store
+	 *            Likes of all levels
+	 * @param idleTimeout
+	 *            Time in milliseconds after which an idle client is closed
+	 * @param pushInterval
+	 *            Time in milliseconds between two pushes regarding watched
+	 *            levels
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	public EventLoop(Protocol protocol, BinaryProtocol binaryProtocol, Metrics metrics, LikeStore store,
+			long idleTimeout, long pushInterval) throws IOException {
+		this.protocol = protocol;
+		this.binaryProtocol = binaryProtocol;
+		this.metrics = metrics;
+		this.store = store;
+		this.idleTimeout = idleTimeout;
+		this.pushInterval = pushInterval;
+		this.selector = Selector.open();
+	}
+
+	/**
+	 * Sets the rate limiting which is checked before a command is decoded.
+	 * 
+	 * @param rateLimiter
+	 *            Rate limiting of the clients
+	 */
+	public void setRateLimiter(RateLimiter rateLimiter) {
+		this.rateLimiter = rateLimiter;
+	}
+
+	/**
+	 * Sets the replication whose peers may merge likes and are not rate
+	 * limited.
+	 * 
+	 * @param replicator
+	 *            Replication of the likes
+	 */
+	public void setReplicator(Replicator replicator) {
+		this.replicator = replicator;
+	}
+
+	/**
+	 * Sets the executor which answers the commands forwarded to other nodes.
+	 * While a forwarded command of a client is pending, its later commands are
+	 * answered by the executor too, so that they are answered in order and see
+	 * the likes added before.
+	 * 
+	 * @param forwarder
+	 *            Executor answering the forwarded commands
+	 */
+	public void setForwarder(Executor forwarder) {
+		this.forwarder = forwarder;
+	}
+
+	/**
+	 * Hands an accepted client over to this event loop.
+	 * 
+	 * @param channel
+	 *            Channel regarding the client
+	 */
+	public void register(SocketChannel channel) {
+		pending.add(channel);
+		selector.wakeup();
+	}
+
+	/**
+	 * Counts the accepted clients which are not registered yet.
+	 * 
+	 * @return Number of waiting clients
+	 */
+	public int getPending() {
+		return pending.size();
+	}
+
+	/**
+	 * Here, Program code is executed in parallel. Waits for ready clients,
+	 * reads their commands and writes the answers. Furthermore, pushes the
+	 * changed likes to clients watching levels once per push interval. While
+	 * draining, the loop ends as soon as all clients are closed.
+	 */
+	public void run() {
+		store.deferCommits();
+		while (!isStopped && !(isDraining && selector.keys().isEmpty() && pending.isEmpty())) {
+			try {
+				selector.select(Math.min(Math.min(idleTimeout, pushInterval), SELECT_TIMEOUT));
+				registerPending();
+				completeAnswers();
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					try {
+						if (key.isValid() && key.isReadable()) {
+							read(key);
+						}
+						if (key.isValid() && key.isWritable()) {
+							write(key);
+						}
+					} catch (IOException e) {
+						close(key);
+					}
+				}
+				if (isDraining) {
+					closeDrained();
+				} else {
+					closeIdle();
+					push();
+				}
+			} catch (IOException e) {
+				System.out.print(e.getMessage());
+			}
+		}
+		for (SelectionKey key : selector.keys()) {
+			close(key);
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			System.out.print(e.getMessage());
+		}
+	}
+
+	/**
+	 * Registers the accepted clients at the selector.
+	 */
+	private void registerPending() {
+		SocketChannel channel;
+		while ((channel = pending.poll()) != null) {
+			try {
+				channel.configureBlocking(false);
+				Connection connection = new Connection();
+				connection.address = channel.socket().getInetAddress();
+				connection.isPeer = replicator != null && replicator.isPeer(connection.address);
+				channel.register(selector, SelectionKey.OP_READ, connection);
+				metrics.connectionOpened();
+			} catch (IOException e) {
+				try {
+					channel.close();
+				} catch (IOException ioe) {
+					System.out.print(ioe.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads from a client and answers every complete line or frame in order.
+	 * Pipelined commands are answered into one buffer and written together. A client sending
+	 * the magic byte first is served with the binary protocol. The buffer grows
+	 * up to the maximum line length, beyond which a line is answered with an
+	 * error and skipped, just like in the other modes.
+	 * 
+	 * @param key
+	 *            Selection key regarding the client
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	private void read(SelectionKey key) throws IOException {
+		Connection connection = (Connection) key.attachment();
+		SocketChannel channel = (SocketChannel) key.channel();
+		ByteBuffer buffer = connection.readBuffer;
+		int read = channel.read(buffer);
+		connection.lastActive = System.currentTimeMillis();
+		int start = 0;
+		if (connection.isBinary == null && buffer.position() > 0) {
+			connection.isBinary = (buffer.get(0) & 0xFF) == BinaryProtocol.MAGIC;
+			start = connection.isBinary ? 1 : 0;
+		}
+		if (Boolean.TRUE.equals(connection.isBinary)) {
+			start = answerFrames(key, connection, buffer, start);
+			if (start < 0) {
+				close(key);
+				return;
+			}
+			if (read < 0) {
+				connection.isClosing = true;
+			}
+		} else {
+			byte[] array = buffer.array();
+			answers.reset();
+			if (connection.isSkipping) {
+				start = skip(connection, array, start, buffer.position());
+			}
+			for (int i = start; i < buffer.position(); ++i) {
+				if (array[i] == '\n') {
+					answerLine(key, connection, array, start, i - start);
+					start = i + 1;
+				}
+			}
+			if (read < 0) {
+				if (start < buffer.position()) {
+					answerLine(key, connection, array, start, buffer.position() - start);
+				}
+				start = buffer.position();
+				connection.isClosing = true;
+			} else if (start == 0 && !buffer.hasRemaining()) {
+				if (buffer.capacity() <= Protocol.MAX_LINE) {
+					buffer = grow(connection, buffer);
+				} else {
+					protocol.tooLong(answers);
+					connection.isSkipping = true;
+					start = buffer.position();
+				}
+			}
+			if (answers.size() > 0) {
+				queue(key, connection, answers.toByteArray());
+			}
+		}
+		buffer.flip();
+		buffer.position(start);
+		buffer.compact();
+		if (buffer.position() == 0 && buffer.capacity() > BUFFER_SIZE) {
+			connection.readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+		}
+		if (!buffer.hasRemaining()) {
+			close(key);
+		} else if (!connection.writeQueue.isEmpty() || !connection.waiting.isEmpty()) {
+			write(key);
+		} else if (connection.isClosing) {
+			close(key);
+		}
+	}
+
+	/**
+	 * Doubles the buffer of a client up to the maximum line length including
+	 * the line break, since it is filled by a line without line break.
+	 * 
+	 * @param connection
+	 *            Connection regarding the client
+	 * @param buffer
+	 *            Filled buffer in write mode
+	 * @return Grown buffer in write mode
+	 */
+	private static ByteBuffer grow(Connection connection, ByteBuffer buffer) {
+		ByteBuffer grown = ByteBuffer.allocate(Math.min(buffer.capacity() * 2, Protocol.MAX_LINE + 1));
+		buffer.flip();
+		grown.put(buffer);
+		connection.readBuffer = grown;
+		return grown;
+	}
+
+	/**
+	 * Skips the rest of a line exceeding the maximum length up to its line
+	 * break.
+	 * 
+	 * @param connection
+	 *            Connection regarding the client
+	 * @param array
+	 *            Bytes read from the client
+	 * @param start
+	 *            Index of the first unanswered byte
+	 * @param end
+	 *            Index after the read bytes
+	 * @return Index after the line break or the end if the line goes on
+	 */
+	private static int skip(Connection connection, byte[] array, int start, int end) {
+		for (int i = start; i < end; ++i) {
+			if (array[i] == '\n') {
+				connection.isSkipping = false;
+				return i + 1;
+			}
+		}
+		return end;
+	}
+
+	/**
+	 * Answers a line into the answers of the current read unless the client
+	 * exceeds its rate limit or sends 'merge' without being a peer. A line which has to be forwarded is handed to the
+	 * forwarder after queuing the answers so far.
+	 * 
+	 * @param key
+	 *            Selection key regarding the client
+	 * @param connection
+	 *            Connection regarding the client
+	 * @param array
+	 *            Bytes containing the line
+	 * @param start
+	 *            Start of the line
+	 * @param length
+	 *            Length of the line
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	private void answerLine(SelectionKey key, Connection connection, byte[] array, int start, int length)
+			throws IOException {
+		int verb = Command.peekVerb(array, start, length);
+		long retryAfter = limit(connection, verb);
+		if (retryAfter != 0) {
+			protocol.limited(retryAfter, answers);
+		} else if (verb == Command.MERGE && !connection.isPeer) {
+			protocol.notPeer(answers);
+		} else if (isForwarded(connection)
+				|| (forwarder != null && protocol.isForwarded(command, array, start, length))) {
+			if (answers.size() > 0) {
+				queue(key, connection, answers.toByteArray());
+				answers.reset();
+			}
+			byte[] line = Arrays.copyOfRange(array, start, start + length);
+			forward(key, connection, () -> {
+				ByteArrayOutputStream output = new ByteArrayOutputStream();
+				protocol.answer(new Command(), connection.watch, line, 0, line.length, output);
+				return output.toByteArray();
+			});
+		} else {
+			protocol.answer(command, connection.watch, array, start, length, answers);
+		}
+	}
+
+	/**
+	 * Takes a token of a client regarding a command. Peers are not limited.
+	 * 
+	 * @param connection
+	 *            Connection regarding the client
+	 * @param verb
+	 *            Verb of the command or -1 if it is unknown
+	 * @return Zero if the command may be answered, otherwise the time in
+	 *         milliseconds after which the client should retry
+	 */
+	private long limit(Connection connection, int verb) {
+		return rateLimiter == null || connection.isPeer ? 0 : rateLimiter.acquire(connection.address, verb);
+	}
+
+	/**
+	 * Answers every complete binary frame in the filled part of a buffer.
+	 * 
+	 * @param key
+	 *            Selection key regarding the client
+	 * @param connection
+	 *            Connection regarding the client
+	 * @param buffer
+	 *            Buffer in write mode
+	 * @param start
+	 *            Index of the first unanswered byte
+	 * @return Index of the first byte after the answered frames or -1 if a
+	 *         frame is invalid
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	private int answerFrames(SelectionKey key, Connection connection, ByteBuffer buffer, int start)
+			throws IOException {
+		ByteBuffer frames = ByteBuffer.wrap(buffer.array(), start, buffer.position() - start);
+		while (frames.hasRemaining()) {
+			int length;
+			try {
+				length = BinaryProtocol.readVarint(frames);
+			} catch (BufferUnderflowException e) {
+				break;
+			} catch (IllegalArgumentException e) {
+				return -1;
+			}
+			if (length == 0 || length > BinaryProtocol.MAX_FRAME) {
+				return -1;
+			}
+			if (frames.remaining() < length) {
+				break;
+			}
+			ByteBuffer payload = frames.slice();
+			payload.limit(length);
+			frames.position(frames.position() + length);
+			long retryAfter = limit(connection, BinaryProtocol.peekVerb(payload));
+			if (retryAfter != 0) {
+				queue(key, connection, binaryProtocol.limited(retryAfter));
+			} else if (isForwarded(connection) || (forwarder != null && binaryProtocol.isForwarded(payload))) {
+				byte[] frame = new byte[length];
+				payload.get(frame);
+				forward(key, connection, () -> binaryProtocol.answer(ByteBuffer.wrap(frame), connection.watch));
+			} else {
+				queue(key, connection, binaryProtocol.answer(payload, connection.watch));
+			}
+			start = frames.position();
+		}
+		return start;
+	}
+
+	/**
+	 * Queues an answer after the earlier answers of a client. If the command
+	 * added likes which are not synced yet, the answer waits for the group
+	 * commit to call back instead of blocking the loop. Later answers wait
+	 * behind it.
+	 * 
+	 * @param key
+	 *            Selection key regarding the client
+	 * @param connection
+	 *            Connection regarding the client
+	 * @param bytes
+	 *            Bytes of the answer
+	 */
+	private void queue(SelectionKey key, Connection connection, byte[] bytes) {
+		if (store.takeUncommitted()) {
+			Answer answer = new Answer(bytes);
+			connection.waiting.add(answer);
+			answer.commit = store.whenCommitted(() -> {
+				answer.isDone = true;
+				complete(key);
+			});
+		} else if (connection.waiting.isEmpty()) {
+			connection.writeQueue.add(ByteBuffer.wrap(bytes));
+		} else {
+			Answer answer = new Answer(bytes);
+			answer.isDone = true;
+			connection.waiting.add(answer);
+		}
+	}
+
+	/**
+	 * Checks whether a forwarded command of a client is pending, so that its
+	 * later commands have to be answered by the forwarder as well.
+	 * 
+	 * @param connection
+	 *            Connection regarding the client
+	 * @return Result of the check
+	 */
+	private static boolean isForwarded(Connection connection) {
+		return connection.forwarded > 0;
+	}
+
+	/**
+	 * Answers a command by the forwarder after the earlier forwarded commands
+	 * of the client. Its answer waits until the forwarder calls back. If the
+	 * command fails, the client is closed.
+	 * 
+	 * @param key
+	 *            Selection key regarding the client
+	 * @param connection
+	 *            Connection regarding the client
+	 * @param task
+	 *            Task answering the command
+	 */
+	private void forward(SelectionKey key, Connection connection, Callable<byte[]> task) {
+		Answer answer = new Answer(null);
+		answer.isForwarded = true;
+		connection.waiting.add(answer);
+		Runnable run = () -> {
+			try {
+				answer.bytes = task.call();
+			} catch (Exception e) {
+				System.out.print(e.getMessage());
+			}
+			answer.isDone = true;
+			complete(key);
+		};
+		try {
+			connection.forwarding = isForwarded(connection) ? connection.forwarding.thenRunAsync(run, forwarder)
+					: CompletableFuture.runAsync(run, forwarder);
+		} catch (RejectedExecutionException e) {
+			answer.isDone = true;
+			complete(key);
+		}
+		++connection.forwarded;
+	}
+
+	/**
+	 * Hands a client whose waiting answer was completed by another thread over
+	 * to the loop.
+	 * 
+	 * @param key
+	 *            Selection key regarding the client
+	 */
+	private void complete(SelectionKey key) {
+		completed.add(key);
+		selector.wakeup();
+	}
+
+	/**
+	 * Moves the completed answers at the front of the waiting answers to the
+	 * write queues and writes them. A client whose likes could not be synced
+	 * is closed, just like a failed write of the log closes it, as well as a
+	 * client whose forwarded command failed.
+	 */
+	private void completeAnswers() {
+		SelectionKey key;
+		while ((key = completed.poll()) != null) {
+			Connection connection = (Connection) key.attachment();
+			if (connection == null || !key.isValid()) {
+				continue;
+			}
+			try {
+				Answer answer;
+				while ((answer = connection.waiting.peek()) != null && answer.isDone) {
+					connection.waiting.poll();
+					if (answer.isForwarded && --connection.forwarded == 0) {
+						connection.forwarding = null;
+					}
+					if (answer.bytes == null) {
+						throw new IOException("The command could not be answered.");
+					}
+					if (answer.commit > 0) {
+						store.checkCommitted(answer.commit);
+					}
+					connection.writeQueue.add(ByteBuffer.wrap(answer.bytes));
+				}
+				write(key);
+			} catch (IOException e) {
+				close(key);
+			}
+		}
+	}
+
+	/**
+	 * Writes the pending answers to a client. Reading is paused while too many
+	 * answers are pending and the connection is closed once the client ended
+	 * its input and all answers were written.
+	 * 
+	 * @param key
+	 *            Selection key regarding the client
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	private void write(SelectionKey key) throws IOException {
+		Connection connection = (Connection) key.attachment();
+		Deque<ByteBuffer> queue = connection.writeQueue;
+		((SocketChannel) key.channel()).write(queue.toArray(new ByteBuffer[queue.size()]));
+		connection.lastActive = System.currentTimeMillis();
+		while (!queue.isEmpty() && !queue.peek().hasRemaining()) {
+			queue.poll();
+		}
+		if (queue.isEmpty() && connection.waiting.isEmpty() && connection.isClosing) {
+			close(key);
+			return;
+		}
+		int ops = 0;
+		if (!connection.isClosing && queue.size() + connection.waiting.size() < MAX_PENDING) {
+			ops |= SelectionKey.OP_READ;
+		}
+		if (!queue.isEmpty()) {
+			ops |= SelectionKey.OP_WRITE;
+		}
+		key.interestOps(ops);
+	}
+
+	/**
+	 * Pushes the changed likes to the clients watching levels if their push
+	 * interval has passed. Clients with too many pending answers or with
+	 * waiting answers are skipped, so that their changes are coalesced into a
+	 * later push.
+	 */
+	private void push() {
+		long now = System.currentTimeMillis();
+		for (SelectionKey key : selector.keys()) {
+			Connection connection = (Connection) key.attachment();
+			if (connection == null || !key.isValid() || connection.writeQueue.size() >= MAX_PENDING
+					|| !connection.waiting.isEmpty() || !connection.watch.isDue(now, pushInterval)) {
+				continue;
+			}
+			try {
+				if (Boolean.TRUE.equals(connection.isBinary)) {
+					byte[] frame = binaryProtocol.push(connection.watch);
+					if (frame != null) {
+						connection.writeQueue.add(ByteBuffer.wrap(frame));
+					}
+				} else {
+					answers.reset();
+					protocol.push(connection.watch, answers);
+					if (answers.size() > 0) {
+						connection.writeQueue.add(ByteBuffer.wrap(answers.toByteArray()));
+					}
+				}
+				if (!connection.writeQueue.isEmpty()) {
+					write(key);
+				}
+			} catch (IOException e) {
+				close(key);
+			}
+		}
+	}
+
+	/**
+	 * Closes all clients which were idle for longer than the timeout unless
+	 * they watch levels or wait for answers.
+	 */
+	private void closeIdle() {
+		long now = System.currentTimeMillis();
+		for (SelectionKey key : selector.keys()) {
+			Connection connection = (Connection) key.attachment();
+			if (connection != null && connection.watch.isEmpty() && connection.waiting.isEmpty()
+					&& now - connection.lastActive > idleTimeout) {
+				close(key);
+			}
+		}
+	}
+
+	/**
+	 * Stops reading from the clients while draining. Clients without pending
+	 * or waiting answers are closed and the others as soon as their answers
+	 * were written.
+	 */
+	private void closeDrained() {
+		for (SelectionKey key : selector.keys()) {
+			Connection connection = (Connection) key.attachment();
+			if (connection == null || !key.isValid()) {
+				continue;
+			}
+			connection.isClosing = true;
+			if (connection.writeQueue.isEmpty() && connection.waiting.isEmpty()) {
+				close(key);
+			} else {
+				key.interestOps(connection.writeQueue.isEmpty() ? 0 : SelectionKey.OP_WRITE);
+			}
+		}
+	}
+
+	/**
+	 * Closes the connection regarding a client.
+	 * 
+	 * @param key
+	 *            Selection key regarding the client
+	 */
+	private void close(SelectionKey key) {
+		if (key.attach(null) != null) {
+			metrics.connectionClosed();
+		}
+		key.cancel();
+		try {
+			key.channel().close();
+		} catch (IOException e) {
+			System.out.print(e.getMessage());
+		}
+	}
+
+	/**
+	 * Lets the event loop answer the commands which were already read, write
+	 * the pending answers and end after closing all clients.
+	 */
+	public void drain() {
+		isDraining = true;
+		selector.wakeup();
+	}
+
+	/**
+	 * Stops the event loop and closes all clients.
+	 */
+	public void stop() {
+		isStopped = true;
+		selector.wakeup();
+	}
+}
@@ -1,35 +1,18 @@
 package server;
 
 import java.net.Socket;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
+import java.net.SocketTimeoutException;
 import java.util.InputMismatchException;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.BufferedReader;
-import java.io.File;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathExpression;
-import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
-import javax.xml.parsers.DocumentBuilder;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
-import org.w3c.dom.Node;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Set;
 
 /**
  * Represents the client of this game.
@@ -40,120 +23,380 @@ import org.w3c.dom.Node;
  */
 public class Handler implements Runnable {
 
+	/** Initial size of the line buffer */
+	private static final int LINE_SIZE = 256;
+
 	/** Client socket regarding the server */
 	protected Socket clientSocket;
 
-	/** Path to the XML file */
-	private final String XML_FILE = "level.xml";
+	/** Protocol to answer commands */
+	protected Protocol protocol;
+
+	/** Protocol to answer binary frames */
+	protected BinaryProtocol binaryProtocol;
+
+	/** Metrics of the server */
+	protected Metrics metrics;
+
+	/** Time in milliseconds between two pushes regarding watched levels */
+	protected long pushInterval;
+
+	/** Levels watched by the client */
+	private final Watch watch = new Watch();
+
+	/** Bytes of the current line which grow with longer lines */
+	private byte[] line = new byte[LINE_SIZE];
+
+	/** Handlers of the server which are not finished yet or null */
+	private Set<Handler> active;
 
-	/** Regex regarding the commands */
-	private final String REGEX = "^(get|add){1}\\s(level\\d)(\\s.*)?$";
+	/** Rate limiting of the clients or null if they are not limited */
+	protected RateLimiter rateLimiter;
+
+	/** Replication knowing the peers or null if likes are not replicated */
+	protected Replicator replicator;
+
+	/** Whether the client is a peer which may merge likes without limit */
+	private boolean isPeer;
+
+	/** Whether a thread has started to serve the client */
+	private volatile boolean isStarted;
+
+	/** Whether only the commands which the client already sent are answered */
+	private volatile boolean isDraining;
 
 	/**
 	 * Constructor of the client which initializes the attributes.
 	 * 
 	 * @param clientSocket
 	 *            Client socket regarding the server
-	 * @param welcomeMessage
-	 *            Welcome message of the server
+	 * @param protocol
+	 *            Protocol to answer commands
+	 * @param binaryProtocol
+	 *            Protocol to answer binary frames
+	 * @param metrics
+	 *            Metrics of the server
+	 * @param pushInterval
+	 *            Time in milliseconds between two pushes regarding watched
+	 *            levels
 	 */
-	public Handler(Socket clientSocket) {
+	public Handler(Socket clientSocket, Protocol protocol, BinaryProtocol binaryProtocol, Metrics metrics,
+			long pushInterval) {
 		this.clientSocket = clientSocket;
+		this.protocol = protocol;
+		this.binaryProtocol = binaryProtocol;
+		this.metrics = metrics;
+		this.pushInterval = pushInterval;
+	}
+
+	/**
+	 * Adds this handler to the handlers of the server which are not finished
+	 * yet. It removes itself as soon as its client is served or rejected.
+	 * 
+	 * @param active
+	 *            Handlers of the server which are not finished yet
+	 */
+	public void setActive(Set<Handler> active) {
+		this.active = active;
+		active.add(this);
+	}
+
+	/**
+	 * Sets the rate limiting which is checked before a command is decoded.
+	 * 
+	 * @param rateLimiter
+	 *            Rate limiting of the clients
+	 */
+	public void setRateLimiter(RateLimiter rateLimiter) {
+		this.rateLimiter = rateLimiter;
+	}
+
+	/**
+	 * Sets the replication whose peers may merge likes and are not rate
+	 * limited.
+	 * 
+	 * @param replicator
+	 *            Replication of the likes
+	 */
+	public void setReplicator(Replicator replicator) {
+		this.replicator = replicator;
 	}
 
 	/**
 	 * Here, Program code is executed in parallel. Gets input and output stream
-	 * and writes a message to the client.
+	 * and answers the commands of the client until it closes the connection.
+	 * Pipelined commands are answered in order and written together. A client
+	 * sending the magic byte first is served with the binary protocol. While
+	 * the client watches levels, which is only offered with virtual threads,
+	 * the connection is not closed when idle. 'merge' is only answered for
+	 * peers. Otherwise, a client asking to
+	 * watch is disconnected after the answer, so that it does not keep a
+	 * thread of the pool while waiting for pushes.
 	 */
 	public void run() {
+		isStarted = true;
+		metrics.connectionOpened();
+		isPeer = replicator != null && replicator.isPeer(clientSocket.getInetAddress());
 		try {
-			String timestamp = new SimpleDateFormat("HH:mm:ss, dd.MM.yyyy").format(Calendar.getInstance().getTime());
-			InputStream input = clientSocket.getInputStream();
-			OutputStream output = clientSocket.getOutputStream();
-			BufferedReader br = new BufferedReader(new InputStreamReader(input));
-			String command;
-			if ((command = br.readLine().trim()) != null) {
-				String msg = parseInput(command);
-				output.write((msg).getBytes());
+			InputStream input = new BufferedInputStream(clientSocket.getInputStream());
+			OutputStream output = new BufferedOutputStream(clientSocket.getOutputStream());
+			input.mark(1);
+			if (isReadable(input) && input.read() == BinaryProtocol.MAGIC) {
+				runBinary(input, output);
+				return;
+			}
+			input.reset();
+			Command command = new Command();
+			int length;
+			while (isReadable(input) && awaitInput(input, output, false) && (length = readLine(input)) >= 0) {
+				int verb = length > Protocol.MAX_LINE ? -1 : Command.peekVerb(line, 0, length);
+				long retryAfter = limit(verb);
+				if (length > Protocol.MAX_LINE) {
+					protocol.tooLong(output);
+				} else if (verb == Command.MERGE && !isPeer) {
+					protocol.notPeer(output);
+				} else if (retryAfter == 0) {
+					protocol.answer(command, watch, line, 0, length, output);
+				} else {
+					protocol.limited(retryAfter, output);
+				}
+				if (verb == Command.WATCH && !protocol.isWatching()) {
+					break;
+				}
+				if (input.available() == 0) {
+					push(output, false);
+					output.flush();
+				}
 			}
-			System.out.println("Request was processed: " + timestamp + "...");
-			br.close();
 			output.close();
 			input.close();
-		} catch (IOException | ParserConfigurationException | SAXException | TransformerException
-				| XPathExpressionException | InputMismatchException e) {
+		} catch (SocketTimeoutException e) {
+			close();
+		} catch (IOException | InputMismatchException e) {
 			System.out.print(e.getMessage());
+			close();
+		} finally {
+			metrics.connectionClosed();
+			finish();
 		}
 	}
 
 	/**
-	 * Parses the input with a regex and generates a output message.
+	 * Answers the client that the server is busy instead of serving it and
+	 * closes the connection. Its pending input is discarded, so that closing
+	 * does not reset the connection before the answer arrives.
 	 * 
-	 * @param in
-	 *            Input from the user
-	 * @return Output message
-	 * @throws ParserConfigurationException
-	 *             Indicates a serious configuration error.
-	 * @throws XPathExpressionException
-	 *             Represents an error in an XPath expression.
-	 * @throws SAXException
-	 *             Can contain basic error or warning information from either
-	 *             the XML parser or the application.
+	 * @param retryAfter
+	 *            Time in milliseconds after which the client should retry
+	 */
+	public void reject(long retryAfter) {
+		try {
+			OutputStream output = clientSocket.getOutputStream();
+			output.write(("The server is busy, retry after " + retryAfter + " ms.\n").getBytes(StandardCharsets.UTF_8));
+			output.flush();
+			clientSocket.shutdownOutput();
+			InputStream input = clientSocket.getInputStream();
+			input.skip(input.available());
+		} catch (IOException e) {
+			System.out.print(e.getMessage());
+		}
+		close();
+		finish();
+	}
+
+	/**
+	 * Lets the handler finish after the commands which the client already
+	 * sent. If a thread serves the client, its input is shut down, so that a
+	 * waiting read ends as if the client had closed the connection while the
+	 * answers are still written. A handler which still waits for a thread
+	 * answers the commands which are available when it starts instead, since
+	 * shutting down the input would discard them.
+	 */
+	public void drain() {
+		isDraining = true;
+		if (!isStarted) {
+			return;
+		}
+		try {
+			clientSocket.shutdownInput();
+		} catch (IOException e) {
+			// The connection is already closed
+		}
+	}
+
+	/**
+	 * Checks whether the handler reads a further command. While the server is
+	 * drained, only the commands which are already available are read.
+	 * 
+	 * @param input
+	 *            Input stream regarding the client
+	 * @return Whether a command is read
 	 * @throws IOException
 	 *             Signals that an I/O exception of some sort has occurred.
-	 * @throws TransformerException
-	 *             Specifies an exceptional condition that occurred during the
-	 *             transformation process.
 	 */
-	private String parseInput(String command) throws ParserConfigurationException, XPathExpressionException,
-			SAXException, IOException, TransformerException {
-		Pattern pattern = Pattern.compile(REGEX, Pattern.CASE_INSENSITIVE);
-		Matcher matcher = pattern.matcher(command);
-		String commandLevel = null;
-		String commandName = null;
-		if (matcher.find()) {
-			commandLevel = matcher.group(2);
-			if (matcher.group(3) != null) {
-				commandName = matcher.group(3).trim();
+	private boolean isReadable(InputStream input) throws IOException {
+		return !isDraining || input.available() > 0;
+	}
+
+	/**
+	 * Reads a line without its line break into the line buffer. The buffer
+	 * grows up to the maximum line length, beyond which the rest of the line
+	 * is skipped.
+	 * 
+	 * @param input
+	 *            Input stream regarding the client
+	 * @return Length of the line, more than the maximum length if it was
+	 *         skipped or -1 if the stream ended before it
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	private int readLine(InputStream input) throws IOException {
+		int length = 0;
+		int b;
+		while ((b = input.read()) >= 0 && b != '\n') {
+			if (length >= Protocol.MAX_LINE) {
+				length = Protocol.MAX_LINE + 1;
+				continue;
 			}
-			File xmlFile = new File(XML_FILE);
-			DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
-			DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
-			Document doc = dBuilder.parse(xmlFile);
-			final XPath xPath = XPathFactory.newInstance().newXPath();
-			final XPathExpression expression = xPath.compile("//level[@id='" + commandLevel + "']//user");
-			final NodeList nodeList = (NodeList) expression.evaluate(doc, XPathConstants.NODESET);
-			if (commandName != null && matcher.group(1).trim().equalsIgnoreCase("add")) {
-				boolean userExists = false;
-				for (int i = 0; i < nodeList.getLength(); ++i) {
-					if (commandName.equals(((Element) nodeList.item(i)).getAttribute("name"))) {
-						userExists = true;
-						return "The user name already exists.\n";
-					}
-				}
-				if (!userExists) {
-					Node level = (Node) xPath.evaluate("//*[@id='" + commandLevel + "']", doc, XPathConstants.NODE);
-					Element user = doc.createElement("user");
-					user.setAttribute("name", commandName);
-					try {
-						level.appendChild(user);
-					} catch (NullPointerException e) {
-						return "The level does not exist.\n";
+			if (length == line.length) {
+				line = Arrays.copyOf(line, Math.min(length * 2, Protocol.MAX_LINE));
+			}
+			line[length++] = (byte) b;
+		}
+		return b < 0 && length == 0 ? -1 : length;
+	}
+
+	/**
+	 * Answers the binary frames of the client until it closes the connection.
+	 * 
+	 * @param input
+	 *            Input stream regarding the client
+	 * @param output
+	 *            Output stream regarding the client
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	private void runBinary(InputStream input, OutputStream output) throws IOException {
+		DataInputStream dis = new DataInputStream(input);
+		int length;
+		while (isReadable(input) && awaitInput(input, output, true)
+				&& (length = BinaryProtocol.readVarint(dis)) >= 0) {
+			if (length == 0 || length > BinaryProtocol.MAX_FRAME) {
+				break;
+			}
+			byte[] payload = new byte[length];
+			dis.readFully(payload);
+			ByteBuffer request = ByteBuffer.wrap(payload);
+			int verb = BinaryProtocol.peekVerb(request);
+			long retryAfter = limit(verb);
+			output.write(retryAfter == 0 ? binaryProtocol.answer(request, watch) : binaryProtocol.limited(retryAfter));
+			if (verb == Command.WATCH && !binaryProtocol.isWatching()) {
+				break;
+			}
+			if (dis.available() == 0) {
+				push(output, true);
+				output.flush();
+			}
+		}
+		output.flush();
+		close();
+	}
+
+	/**
+	 * Takes a token of the client regarding a command. Peers are not limited.
+	 * 
+	 * @param verb
+	 *            Verb of the command or -1 if it is unknown
+	 * @return Zero if the command may be answered, otherwise the time in
+	 *         milliseconds after which the client should retry
+	 */
+	private long limit(int verb) {
+		return rateLimiter == null || isPeer ? 0 : rateLimiter.acquire(clientSocket.getInetAddress(), verb);
+	}
+
+	/**
+	 * Waits for the next input of the client. While the client watches levels,
+	 * the changed likes are pushed once per push interval in the meantime.
+	 * 
+	 * @param input
+	 *            Input stream regarding the client which supports marks
+	 * @param output
+	 *            Output stream regarding the client
+	 * @param isBinary
+	 *            Whether the client uses the binary protocol
+	 * @return Whether input is available or false if the stream ended
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	private boolean awaitInput(InputStream input, OutputStream output, boolean isBinary) throws IOException {
+		if (watch.isEmpty()) {
+			return true;
+		}
+		int idleTimeout = clientSocket.getSoTimeout();
+		clientSocket.setSoTimeout((int) Math.min(pushInterval, Integer.MAX_VALUE));
+		try {
+			while (true) {
+				push(output, isBinary);
+				output.flush();
+				input.mark(1);
+				try {
+					if (input.read() < 0) {
+						return false;
 					}
-					TransformerFactory transformerFactory = TransformerFactory.newInstance();
-					Transformer transformer = transformerFactory.newTransformer();
-					DOMSource domSource = new DOMSource(doc);
-					StreamResult streamResult = new StreamResult(new File(XML_FILE));
-					transformer.transform(domSource, streamResult);
-					return "The user name was accepted.\n";
+					input.reset();
+					return true;
+				} catch (SocketTimeoutException e) {
+					// Nothing was received during the push interval
 				}
-			} else {
-				int nodeListLength = nodeList.getLength();
-				return (nodeListLength + "\n");
+			}
+		} finally {
+			clientSocket.setSoTimeout(idleTimeout);
+		}
+	}
+
+	/**
+	 * Pushes the changed likes of the watched levels if the push interval has
+	 * passed.
+	 * 
+	 * @param output
+	 *            Output stream regarding the client
+	 * @param isBinary
+	 *            Whether the client uses the binary protocol
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	private void push(OutputStream output, boolean isBinary) throws IOException {
+		if (!watch.isDue(System.currentTimeMillis(), pushInterval)) {
+			return;
+		}
+		if (isBinary) {
+			byte[] frame = binaryProtocol.push(watch);
+			if (frame != null) {
+				output.write(frame);
 			}
 		} else {
-			return "The regular expression did not match with the given commands.\n";
+			protocol.push(watch, output);
+		}
+	}
+
+	/**
+	 * Removes this handler from the handlers of the server which are not
+	 * finished yet.
+	 */
+	private void finish() {
+		if (active != null) {
+			active.remove(this);
+		}
+	}
+
+	/**
+	 * Closes the connection regarding the client.
+	 */
+	public void close() {
+		try {
+			clientSocket.close();
+		} catch (IOException e) {
+			System.out.print(e.getMessage());
 		}
-		return null;
 	}
-}
\ No newline at end of file
+}
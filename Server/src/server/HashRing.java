@@ -0,0 +1,96 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Represents a consistent-hash ring which assigns each level to a node like
+ * 'localhost:55555'. Every node is placed on the ring at several points and a
+ * level belongs to the first point following its hash. Thus, adding a node
+ * only moves the levels between its points and their predecessors, i.e. about
+ * one level in n+1. The hash is the first eight bytes of MD5, so that the game
+ * computes the same ring without sharing code with the server.
+ * 
+ * @author Rune Krauss
+ * @author Steffen Gerken
+ * @author Niels Arbatschat
+ */
+public class HashRing {
+
+	/** Points of a node on the ring */
+	public static final int POINTS_PER_NODE = 100;
+
+	/** Hashes of the points in ascending order */
+	private final long[] points;
+
+	/** Nodes of the points */
+	private final String[] owners;
+
+	/** Digest per thread since MD5 is not thread-safe */
+	private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(() -> {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("An error was occured while creating the MD5 digest.", e);
+		}
+	});
+
+	/**
+	 * Constructor of the ring which places the nodes.
+	 * 
+	 * @param nodes
+	 *            Nodes like 'localhost:55555'
+	 */
+	public HashRing(List<String> nodes) {
+		if (nodes.isEmpty()) {
+			throw new IllegalArgumentException("The ring needs at least one node.");
+		}
+		long[][] placed = new long[nodes.size() * POINTS_PER_NODE][];
+		for (int n = 0; n < nodes.size(); ++n) {
+			for (int i = 0; i < POINTS_PER_NODE; ++i) {
+				placed[n * POINTS_PER_NODE + i] = new long[] { hash(nodes.get(n) + "#" + i), n };
+			}
+		}
+		Arrays.sort(placed, (a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+		points = new long[placed.length];
+		owners = new String[placed.length];
+		for (int i = 0; i < placed.length; ++i) {
+			points[i] = placed[i][0];
+			owners[i] = nodes.get((int) placed[i][1]);
+		}
+	}
+
+	/**
+	 * Gets the node owning a level.
+	 * 
+	 * @param level
+	 *            ID of the level
+	 * @return Node like 'localhost:55555'
+	 */
+	public String owner(String level) {
+		int i = Arrays.binarySearch(points, hash(level));
+		if (i < 0) {
+			i = -i - 1;
+		}
+		return owners[i == points.length ? 0 : i];
+	}
+
+	/**
+	 * Hashes a key to a point of the ring.
+	 * 
+	 * @param key
+	 *            Node point or level ID
+	 * @return First eight bytes of the MD5 of the key as big-endian long
+	 */
+	private static long hash(String key) {
+		byte[] digest = DIGEST.get().digest(key.getBytes(StandardCharsets.UTF_8));
+		long hash = 0;
+		for (int i = 0; i < 8; ++i) {
+			hash = (hash << 8) | (digest[i] & 0xFF);
+		}
+		return hash;
+	}
+}
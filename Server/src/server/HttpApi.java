@@ -0,0 +1,420 @@
+package server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Represents the HTTP interface of the likes which shares the store with the
+ * socket protocols. 'GET /levels/{id}/likes' answers the likes of a level as
+ * JSON and 'POST /levels/{id}/likes' with a body like {"user":"name"} adds a
+ * like. Each answer carries an ETag derived from the version of the level, so
+ * that a conditional GET with an unchanged ETag is answered with '304 Not
+ * Modified' without a body. Reading a level only takes its published snapshot,
+ * so GETs never wait for writers. In a cluster, levels of other nodes are
+ * answered with '421 Misdirected Request' naming their owner. A client
+ * exceeding its rate limit is answered with '429 Too Many Requests'.
+ * 
+ * @author Rune Krauss
+ * @author Steffen Gerken
+ * @author Niels Arbatschat
+ */
+public class HttpApi {
+
+	/** Prefix of the paths */
+	private static final String PATH_PREFIX = "/levels/";
+
+	/** Suffix of the paths */
+	private static final String PATH_SUFFIX = "/likes";
+
+	/** Maximum length of the body of a POST in bytes */
+	private static final int MAX_BODY = 1024;
+
+	/** Time in seconds which the server waits for running exchanges when stopping */
+	private static final int STOP_DELAY = 1;
+
+	/** Likes of all levels */
+	protected LikeStore store;
+
+	/** Metrics of the server */
+	protected Metrics metrics;
+
+	/** Routing of the levels to the nodes or null if this node owns all levels */
+	protected Router router;
+
+	/** Rate limiting of the clients or null if they are not limited */
+	protected RateLimiter rateLimiter;
+
+	/** Port of the interface */
+	protected int port;
+
+	/** HTTP server of the JDK */
+	protected HttpServer httpServer;
+
+	/** Executor regarding the exchanges */
+	protected ExecutorService threadPool;
+
+	/**
+	 * Start of the store which is part of the ETags, since the versions of the
+	 * store restart with each run
+	 */
+	private final String epoch = Long.toHexString(System.currentTimeMillis());
+
+	/**
+	 * Constructor of the interface which initializes the attributes.
+	 * 
+	 * @param port
+	 *            Port of the interface
+	 * @param store
+	 *            Likes of all levels
+	 * @param metrics
+	 *            Metrics of the server
+	 */
+	public HttpApi(int port, LikeStore store, Metrics metrics) {
+		this.port = port;
+		this.store = store;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Sets the routing of the levels to the nodes of a cluster.
+	 * 
+	 * @param router
+	 *            Routing of the levels
+	 */
+	public void setRouter(Router router) {
+		this.router = router;
+	}
+
+	/**
+	 * Sets the rate limiting which is checked before a request is parsed.
+	 * GET is limited like 'get' and POST like 'add'.
+	 * 
+	 * @param rateLimiter
+	 *            Rate limiting of the clients
+	 */
+	public void setRateLimiter(RateLimiter rateLimiter) {
+		this.rateLimiter = rateLimiter;
+	}
+
+	/**
+	 * Starts the HTTP server with a pool of threads regarding the exchanges.
+	 * 
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	public void start() throws IOException {
+		httpServer = HttpServer.create(new InetSocketAddress(port), 0);
+		httpServer.createContext(PATH_PREFIX, this::handle);
+		threadPool = Executors.newFixedThreadPool(Math.max(4, 2 * Runtime.getRuntime().availableProcessors()));
+		httpServer.setExecutor(threadPool);
+		httpServer.start();
+	}
+
+	/**
+	 * Stops the HTTP server and its threads.
+	 */
+	public void stop() {
+		if (httpServer != null) {
+			httpServer.stop(STOP_DELAY);
+			threadPool.shutdown();
+		}
+	}
+
+	/**
+	 * Answers an exchange regarding the likes of a level.
+	 * 
+	 * @param exchange
+	 *            Request and response
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	private void handle(HttpExchange exchange) throws IOException {
+		if (limit(exchange)) {
+			return;
+		}
+		long start = System.nanoTime();
+		int command = Metrics.INVALID;
+		try {
+			String path = exchange.getRequestURI().getPath();
+			if (!path.endsWith(PATH_SUFFIX) || path.length() <= PATH_PREFIX.length() + PATH_SUFFIX.length()) {
+				send(exchange, 404, error("The path does not exist."));
+				return;
+			}
+			String level = path.substring(PATH_PREFIX.length(), path.length() - PATH_SUFFIX.length());
+			if (level.indexOf('/') >= 0) {
+				send(exchange, 404, error("The path does not exist."));
+			} else if (router != null && !router.isLocal(level)) {
+				send(exchange, 421, error("The level is owned by " + router.owner(level) + "."));
+			} else if (exchange.getRequestMethod().equals("GET")) {
+				command = Command.GET;
+				get(exchange, level);
+			} else if (exchange.getRequestMethod().equals("POST")) {
+				command = Command.ADD;
+				post(exchange, level);
+			} else {
+				exchange.getResponseHeaders().set("Allow", "GET, POST");
+				send(exchange, 405, error("The method is not allowed."));
+			}
+		} finally {
+			exchange.close();
+			metrics.record(command, System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Takes a token of the client regarding the method of an exchange. If the
+	 * client exceeds its rate limit, the exchange is answered with '429 Too
+	 * Many Requests' and closed.
+	 * 
+	 * @param exchange
+	 *            Request and response
+	 * @return Whether the exchange was answered due to the rate limit
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	private boolean limit(HttpExchange exchange) throws IOException {
+		if (rateLimiter == null) {
+			return false;
+		}
+		String method = exchange.getRequestMethod();
+		long retryAfter = rateLimiter.acquire(exchange.getRemoteAddress().getAddress(),
+				method.equals("GET") ? Command.GET : method.equals("POST") ? Command.ADD : -1);
+		if (retryAfter == 0) {
+			return false;
+		}
+		try {
+			metrics.requestLimited();
+			exchange.getResponseHeaders().set("Retry-After", Long.toString((retryAfter + 999) / 1000));
+			send(exchange, 429, error("The rate limit was exceeded, retry after " + retryAfter + " ms."));
+		} finally {
+			exchange.close();
+		}
+		return true;
+	}
+
+	/**
+	 * Answers the likes of a level unless the ETag of the client is still up
+	 * to date.
+	 * 
+	 * @param exchange
+	 *            Request and response
+	 * @param level
+	 *            ID of the level
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	private void get(HttpExchange exchange, String level) throws IOException {
+		LikeStore.Snapshot snapshot = store.snapshot(level);
+		if (snapshot == null) {
+			send(exchange, 404, error("The level does not exist."));
+			return;
+		}
+		String etag = etag(snapshot);
+		exchange.getResponseHeaders().set("ETag", etag);
+		exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+		if (matches(exchange.getRequestHeaders().getFirst("If-None-Match"), etag)) {
+			exchange.sendResponseHeaders(304, -1);
+			return;
+		}
+		send(exchange, 200, likes(level, snapshot));
+	}
+
+	/**
+	 * Adds the like of the user given by the body and answers the new likes of
+	 * the level.
+	 * 
+	 * @param exchange
+	 *            Request and response
+	 * @param level
+	 *            ID of the level
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	private void post(HttpExchange exchange, String level) throws IOException {
+		String user = readUser(exchange.getRequestBody());
+		if (user != null) {
+			user = user.trim();
+		}
+		if (user == null || user.isEmpty() || user.indexOf('\n') >= 0 || user.indexOf('\r') >= 0) {
+			send(exchange, 400, error("The body needs a user name like {\"user\":\"name\"}."));
+			return;
+		}
+		switch (store.add(level, user)) {
+		case EXISTS:
+			send(exchange, 409, error("The user name already exists."));
+			break;
+		case NO_LEVEL:
+			send(exchange, 404, error("The level does not exist."));
+			break;
+		default:
+			LikeStore.Snapshot snapshot = store.snapshot(level);
+			exchange.getResponseHeaders().set("ETag", etag(snapshot));
+			send(exchange, 201, likes(level, snapshot));
+		}
+	}
+
+	/**
+	 * Reads the user name of a body like {"user":"name"}. Only the escapes
+	 * '\"' and '\\' are supported within the name.
+	 * 
+	 * @param body
+	 *            Body of the request
+	 * @return Name of the user or null if the body is invalid
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	private static String readUser(InputStream body) throws IOException {
+		byte[] bytes = new byte[MAX_BODY + 1];
+		int length = 0;
+		for (int n; length < bytes.length && (n = body.read(bytes, length, bytes.length - length)) > 0;) {
+			length += n;
+		}
+		if (length > MAX_BODY) {
+			return null;
+		}
+		String json = new String(bytes, 0, length, StandardCharsets.UTF_8).trim();
+		int key = json.indexOf("\"user\"");
+		if (!json.startsWith("{") || !json.endsWith("}") || key < 0) {
+			return null;
+		}
+		int i = key + "\"user\"".length();
+		while (i < json.length() && Character.isWhitespace(json.charAt(i))) {
+			++i;
+		}
+		if (i >= json.length() || json.charAt(i) != ':') {
+			return null;
+		}
+		do {
+			++i;
+		} while (i < json.length() && Character.isWhitespace(json.charAt(i)));
+		if (i >= json.length() || json.charAt(i) != '"') {
+			return null;
+		}
+		StringBuilder user = new StringBuilder();
+		for (++i; i < json.length(); ++i) {
+			char c = json.charAt(i);
+			if (c == '"') {
+				return user.toString();
+			}
+			if (c == '\\') {
+				if (++i >= json.length() || (json.charAt(i) != '"' && json.charAt(i) != '\\')) {
+					return null;
+				}
+				c = json.charAt(i);
+			}
+			user.append(c);
+		}
+		return null;
+	}
+
+	/**
+	 * Checks whether the header If-None-Match contains an ETag.
+	 * 
+	 * @param header
+	 *            Value of the header or null
+	 * @param etag
+	 *            Current ETag
+	 * @return Result of the check
+	 */
+	private static boolean matches(String header, String etag) {
+		if (header == null) {
+			return false;
+		}
+		for (String tag : header.split(",")) {
+			tag = tag.trim();
+			if (tag.startsWith("W/")) {
+				tag = tag.substring(2);
+			}
+			if (tag.equals(etag) || tag.equals("*")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Creates the ETag of a level.
+	 * 
+	 * @param snapshot
+	 *            State of the level
+	 * @return ETag of the level
+	 */
+	private String etag(LikeStore.Snapshot snapshot) {
+		return "\"" + epoch + "-" + snapshot.getVersion() + "\"";
+	}
+
+	/**
+	 * Creates the JSON of the likes of a level.
+	 * 
+	 * @param level
+	 *            ID of the level
+	 * @param snapshot
+	 *            State of the level
+	 * @return JSON of the likes
+	 */
+	private static String likes(String level, LikeStore.Snapshot snapshot) {
+		return "{\"level\":\"" + escape(level) + "\",\"likes\":" + snapshot.getCount() + "}";
+	}
+
+	/**
+	 * Creates the JSON of an error.
+	 * 
+	 * @param msg
+	 *            Message of the error
+	 * @return JSON of the error
+	 */
+	private static String error(String msg) {
+		return "{\"error\":\"" + escape(msg) + "\"}";
+	}
+
+	/**
+	 * Escapes quotes, backslashes and control characters regarding a JSON
+	 * string.
+	 * 
+	 * @param s
+	 *            String to escape
+	 * @return Escaped string
+	 */
+	private static String escape(String s) {
+		StringBuilder escaped = new StringBuilder(s.length());
+		for (int i = 0; i < s.length(); ++i) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\') {
+				escaped.append('\\').append(c);
+			} else if (c < ' ') {
+				escaped.append(String.format("\\u%04x", (int) c));
+			} else {
+				escaped.append(c);
+			}
+		}
+		return escaped.toString();
+	}
+
+	/**
+	 * Sends a JSON response.
+	 * 
+	 * @param exchange
+	 *            Request and response
+	 * @param status
+	 *            Status code of the response
+	 * @param json
+	 *            Body of the response
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	private static void send(HttpExchange exchange, int status, String json) throws IOException {
+		byte[] body = json.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		exchange.sendResponseHeaders(status, body.length);
+		try (OutputStream output = exchange.getResponseBody()) {
+			output.write(body);
+		}
+	}
+}
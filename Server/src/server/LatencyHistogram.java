@@ -0,0 +1,105 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Represents a histogram of latencies in nanoseconds. Each power of two is
+ * divided into eight buckets, so that a percentile is at most 12.5 percent
+ * below the real latency while recording is a single atomic increment.
+ * 
+ * @author Rune Krauss
+ * @author Steffen Gerken
+ * @author Niels Arbatschat
+ */
+public class LatencyHistogram {
+
+	/** Number of buckets per power of two as exponent */
+	private static final int SUB_BITS = 3;
+
+	/** Number of values with an own bucket */
+	private static final int LINEAR = 2 << SUB_BITS;
+
+	/** Number of recorded latencies per bucket */
+	private final AtomicLongArray buckets = new AtomicLongArray(LINEAR + (64 - SUB_BITS - 1) * (1 << SUB_BITS));
+
+	/**
+	 * Records a latency.
+	 * 
+	 * @param nanos
+	 *            Latency in nanoseconds
+	 */
+	public void record(long nanos) {
+		buckets.incrementAndGet(index(Math.max(0, nanos)));
+	}
+
+	/**
+	 * Counts the recorded latencies.
+	 * 
+	 * @return Number of recorded latencies
+	 */
+	public long count() {
+		long count = 0;
+		for (int i = 0; i < buckets.length(); ++i) {
+			count += buckets.get(i);
+		}
+		return count;
+	}
+
+	/**
+	 * Computes a percentile of the recorded latencies.
+	 * 
+	 * @param percentile
+	 *            Percentile between 0 and 100, e.g. 99.9
+	 * @return Lower bound of the bucket containing the percentile in
+	 *         nanoseconds or zero if nothing was recorded
+	 */
+	public long percentile(double percentile) {
+		long[] counts = new long[buckets.length()];
+		long total = 0;
+		for (int i = 0; i < counts.length; ++i) {
+			counts[i] = buckets.get(i);
+			total += counts[i];
+		}
+		long rank = (long) Math.ceil(total * percentile / 100);
+		long seen = 0;
+		for (int i = 0; i < counts.length; ++i) {
+			seen += counts[i];
+			if (seen >= rank && seen > 0) {
+				return lowerBound(i);
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Computes the bucket of a latency.
+	 * 
+	 * @param nanos
+	 *            Non-negative latency in nanoseconds
+	 * @return Index of the bucket
+	 */
+	private static int index(long nanos) {
+		if (nanos < LINEAR) {
+			return (int) nanos;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+		int sub = (int) (nanos >>> (exponent - SUB_BITS)) & ((1 << SUB_BITS) - 1);
+		return LINEAR + (exponent - SUB_BITS - 1) * (1 << SUB_BITS) + sub;
+	}
+
+	/**
+	 * Computes the smallest latency of a bucket.
+	 * 
+	 * @param index
+	 *            Index of the bucket
+	 * @return Latency in nanoseconds
+	 */
+	private static long lowerBound(int index) {
+		if (index < LINEAR) {
+			return index;
+		}
+		int exponent = (index - LINEAR) / (1 << SUB_BITS) + SUB_BITS + 1;
+		int sub = (index - LINEAR) % (1 << SUB_BITS);
+		return ((long) ((1 << SUB_BITS) + sub)) << (exponent - SUB_BITS);
+	}
+}
@@ -0,0 +1,122 @@
+package server;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+/**
+ * Represents the levels ranked by their likes, so that the most liked levels
+ * are answered without counting all levels. The levels are kept in an array
+ * in descending order of their likes. Since a like is never withdrawn, an
+ * accepted like only moves its level to the front of the levels with the same
+ * likes, which is found by a binary search and reached by one swap. Levels
+ * with the same likes are in no particular order.
+ * 
+ * @author Rune Krauss
+ * @author Steffen Gerken
+ * @author Niels Arbatschat
+ */
+public class Leaderboard {
+
+	/** IDs of the levels by their index */
+	private final String[] ids;
+
+	/** Indexes of the levels by their rank */
+	private final int[] ranked;
+
+	/** Ranks of the levels by their index */
+	private final int[] ranks;
+
+	/** Likes by rank */
+	private final int[] counts;
+
+	/** Lock regarding the ranking */
+	private final Lock lock = new ReentrantLock();
+
+	/**
+	 * Constructor of the leaderboard which ranks the levels.
+	 * 
+	 * @param ids
+	 *            IDs of the levels by their index
+	 * @param likes
+	 *            Likes of the levels by their index
+	 */
+	public Leaderboard(String[] ids, int[] likes) {
+		this.ids = ids.clone();
+		this.ranked = new int[ids.length];
+		this.ranks = new int[ids.length];
+		this.counts = new int[ids.length];
+		Integer[] order = new Integer[ids.length];
+		for (int i = 0; i < order.length; ++i) {
+			order[i] = i;
+		}
+		Arrays.sort(order, (a, b) -> likes[a] != likes[b] ? Integer.compare(likes[b], likes[a])
+				: Integer.compare(a, b));
+		for (int rank = 0; rank < order.length; ++rank) {
+			ranked[rank] = order[rank];
+			ranks[order[rank]] = rank;
+			counts[rank] = likes[order[rank]];
+		}
+	}
+
+	/**
+	 * Moves a level after an accepted like.
+	 * 
+	 * @param index
+	 *            Index of the level
+	 */
+	public void increment(int index) {
+		lock.lock();
+		try {
+			int rank = ranks[index];
+			int count = counts[rank];
+			int low = 0;
+			int high = rank;
+			while (low < high) {
+				int middle = (low + high) >>> 1;
+				if (counts[middle] > count) {
+					low = middle + 1;
+				} else {
+					high = middle;
+				}
+			}
+			int other = ranked[low];
+			ranked[low] = index;
+			ranks[index] = low;
+			ranked[rank] = other;
+			ranks[other] = rank;
+			counts[low] = count + 1;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Gets the levels with the most likes.
+	 * 
+	 * @param n
+	 *            Maximum number of levels
+	 * @param filter
+	 *            Filter regarding the IDs of the levels to rank or null if
+	 *            all levels are ranked
+	 * @return Likes per level in descending order
+	 */
+	public Map<String, Integer> top(int n, Predicate<String> filter) {
+		Map<String, Integer> top = new LinkedHashMap<>();
+		lock.lock();
+		try {
+			for (int rank = 0; rank < ranked.length && top.size() < n; ++rank) {
+				String id = ids[ranked[rank]];
+				if (filter == null || filter.test(id)) {
+					top.put(id, counts[rank]);
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+		return top;
+	}
+}
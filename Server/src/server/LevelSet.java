@@ -0,0 +1,121 @@
+package server;
+
+import java.util.Arrays;
+
+/**
+ * Represents the levels which a user likes as an immutable set of level
+ * indexes. Few levels are kept as a sorted int array. Once the array would
+ * need more memory than a bitset up to the highest index, the set becomes a
+ * bitset of longs, so that a user needs at most one bit per level. Adding a
+ * level creates a new set, so that the set can be read without locking.
+ * 
+ * @author Rune Krauss
+ * @author Steffen Gerken
+ * @author Niels Arbatschat
+ */
+public final class LevelSet {
+
+	/** Set without levels */
+	public static final LevelSet EMPTY = new LevelSet(new int[0], null, 0);
+
+	/** Sorted indexes of the levels or null if the set is a bitset */
+	private final int[] indexes;
+
+	/** Bits of the level indexes or null if the set is an array */
+	private final long[] words;
+
+	/** Number of levels */
+	private final int size;
+
+	/**
+	 * Constructor of the set which initializes the attributes.
+	 * 
+	 * @param indexes
+	 *            Sorted indexes of the levels or null
+	 * @param words
+	 *            Bits of the level indexes or null
+	 * @param size
+	 *            Number of levels
+	 */
+	private LevelSet(int[] indexes, long[] words, int size) {
+		this.indexes = indexes;
+		this.words = words;
+		this.size = size;
+	}
+
+	/**
+	 * Gets the number of levels.
+	 * 
+	 * @return Number of levels
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Checks whether the set contains a level.
+	 * 
+	 * @param index
+	 *            Index of the level
+	 * @return Result of the check
+	 */
+	public boolean contains(int index) {
+		if (indexes != null) {
+			return Arrays.binarySearch(indexes, index) >= 0;
+		}
+		return index >> 6 < words.length && (words[index >> 6] & 1L << index) != 0;
+	}
+
+	/**
+	 * Adds a level.
+	 * 
+	 * @param index
+	 *            Non-negative index of the level
+	 * @return Set including the level, which is this set if it contains the
+	 *         level already
+	 */
+	public LevelSet with(int index) {
+		if (contains(index)) {
+			return this;
+		}
+		if (indexes != null) {
+			int highest = Math.max(index, size == 0 ? 0 : indexes[size - 1]);
+			if (size + 1 <= 2 * ((highest >> 6) + 1)) {
+				int insertion = -Arrays.binarySearch(indexes, index) - 1;
+				int[] added = new int[size + 1];
+				System.arraycopy(indexes, 0, added, 0, insertion);
+				added[insertion] = index;
+				System.arraycopy(indexes, insertion, added, insertion + 1, size - insertion);
+				return new LevelSet(added, null, size + 1);
+			}
+			long[] added = new long[(highest >> 6) + 1];
+			for (int i : indexes) {
+				added[i >> 6] |= 1L << i;
+			}
+			added[index >> 6] |= 1L << index;
+			return new LevelSet(null, added, size + 1);
+		}
+		long[] added = Arrays.copyOf(words, Math.max(words.length, (index >> 6) + 1));
+		added[index >> 6] |= 1L << index;
+		return new LevelSet(null, added, size + 1);
+	}
+
+	/**
+	 * Gets the indexes of the levels.
+	 * 
+	 * @return Indexes in ascending order
+	 */
+	public int[] toArray() {
+		if (indexes != null) {
+			return indexes.clone();
+		}
+		int[] array = new int[size];
+		int i = 0;
+		for (int word = 0; word < words.length; ++word) {
+			for (long bits = words[word]; bits != 0; bits &= bits - 1) {
+				array[i++] = (word << 6) + Long.numberOfTrailingZeros(bits);
+			}
+		}
+		return array;
+	}
+}
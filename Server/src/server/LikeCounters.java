@@ -0,0 +1,124 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Represents the like counts of all levels in a memory-mapped file, so that
+ * other local processes like a monitoring tool can read the current counts
+ * without asking the server. The server itself answers counts from the
+ * snapshots of the store, which are read without locking as well. The file is
+ * big-endian and starts with a header of four ints (magic, version, number of
+ * slots, number of used slots) followed by slots of 32 bytes. A slot consists
+ * of the length of the level ID as unsigned byte, the ID in UTF-8 padded to 27
+ * bytes and the count as int. A longer ID is cut to its first 27 bytes and its
+ * length is stored up to 255, so a length above 27 marks a cut ID.
+ * 
+ * @author Rune Krauss
+ * @author Steffen Gerken
+ * @author Niels Arbatschat
+ */
+public class LikeCounters {
+
+	/** First bytes of the file */
+	private static final int MAGIC = 0x4C434E54;
+
+	/** Version of the file format */
+	private static final int VERSION = 1;
+
+	/** Size of the header in bytes */
+	private static final int HEADER_SIZE = 16;
+
+	/** Size of a slot in bytes */
+	private static final int SLOT_SIZE = 32;
+
+	/** Maximum length of a stored level ID in bytes */
+	private static final int MAX_ID_LENGTH = SLOT_SIZE - 5;
+
+	/** Minimum number of slots */
+	private static final int MIN_SLOTS = 1024;
+
+	/** Path to the file */
+	private final File file;
+
+	/** Mapped memory of the file */
+	private MappedByteBuffer buffer;
+
+	/** Offsets of the counts per level */
+	private final Map<String, Integer> offsets = new HashMap<>();
+
+	/**
+	 * Constructor of the counters which initializes the attributes.
+	 * 
+	 * @param file
+	 *            Path to the file
+	 */
+	public LikeCounters(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Maps the file and writes the counts of the recovered likes, so that the
+	 * file matches the log even after a crash between both writes.
+	 * 
+	 * @param levels
+	 *            User names per level
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	public void open(Map<String, Set<String>> levels) throws IOException {
+		int slots = Math.max(MIN_SLOTS, Integer.highestOneBit(Math.max(1, levels.size()) * 2 - 1));
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(HEADER_SIZE + (long) slots * SLOT_SIZE);
+			buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) slots * SLOT_SIZE);
+		}
+		buffer.putInt(0, MAGIC);
+		buffer.putInt(4, VERSION);
+		buffer.putInt(8, slots);
+		int slot = 0;
+		for (Map.Entry<String, Set<String>> level : levels.entrySet()) {
+			byte[] id = level.getKey().getBytes(StandardCharsets.UTF_8);
+			int offset = HEADER_SIZE + slot * SLOT_SIZE;
+			buffer.put(offset, (byte) Math.min(id.length, 255));
+			for (int i = 0; i < MAX_ID_LENGTH; ++i) {
+				buffer.put(offset + 1 + i, i < id.length ? id[i] : 0);
+			}
+			buffer.putInt(offset + 1 + MAX_ID_LENGTH, level.getValue().size());
+			offsets.put(level.getKey(), offset + 1 + MAX_ID_LENGTH);
+			++slot;
+		}
+		for (int offset = HEADER_SIZE + slot * SLOT_SIZE; offset < buffer.capacity(); ++offset) {
+			buffer.put(offset, (byte) 0);
+		}
+		buffer.putInt(12, slot);
+	}
+
+	/**
+	 * Increments the count of a level.
+	 * 
+	 * @param level
+	 *            ID of the level
+	 */
+	public void increment(String level) {
+		Integer offset = offsets.get(level);
+		if (offset != null) {
+			buffer.putInt(offset, buffer.getInt(offset) + 1);
+		}
+	}
+
+	/**
+	 * Forces the counts to the disk.
+	 */
+	public void close() {
+		if (buffer != null) {
+			buffer.force();
+		}
+	}
+}
@@ -0,0 +1,867 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Represents the persistence of the likes as log. Accepted likes are appended
+ * to numbered segments. A background compaction merges the closed segments
+ * into a binary snapshot, so that a restart only loads the latest snapshot and
+ * replays the segments written after it. Since each compaction rewrites the
+ * whole snapshot, it only runs once the segments written after the snapshot
+ * reach a quarter of its size and at least 1 MB. The snapshot with number n contains
+ * all records of the segments below n. With group commit, a background thread
+ * collects the records appended by concurrent writers for a short time or up
+ * to a number of records and syncs them to the disk at once, while each writer
+ * waits until its records are synced or is called back afterwards.
+ * 
+ * @author Rune Krauss
+ * @author Steffen Gerken
+ * @author Niels Arbatschat
+ */
+public class LikeLog {
+
+	/** Separator between level and user name in a record */
+	private static final byte SEPARATOR = '\t';
+
+	/** End of a record */
+	private static final byte END = '\n';
+
+	/** Prefix of the segment files */
+	private static final String SEGMENT_PREFIX = "segment-";
+
+	/** Suffix of the segment files */
+	private static final String SEGMENT_SUFFIX = ".log";
+
+	/** Prefix of the snapshot files */
+	private static final String SNAPSHOT_PREFIX = "snapshot-";
+
+	/** Suffix of the snapshot files */
+	private static final String SNAPSHOT_SUFFIX = ".bin";
+
+	/** First bytes of a snapshot whose strings are prefixed by their length as int */
+	private static final int SNAPSHOT_MAGIC = 0x4C494B32;
+
+	/** First bytes of a snapshot of former versions whose strings are modified UTF-8 */
+	private static final int LEGACY_SNAPSHOT_MAGIC = 0x4C494B45;
+
+	/** Size in bytes after which a new segment is started */
+	private static final long SEGMENT_SIZE = 8 * 1024 * 1024;
+
+	/** Interval of the compaction in seconds */
+	private static final long COMPACTION_INTERVAL = 60;
+
+	/** Size in bytes of the segments below which no compaction runs */
+	private static final long MIN_COMPACTION_SIZE = 1024 * 1024;
+
+	/** Directory of the segments and snapshots */
+	private final File directory;
+
+	/** Number of the current segment */
+	private long segment;
+
+	/** Size of the current segment in bytes */
+	private long segmentSize;
+
+	/** Buffered stream to append records to the current segment */
+	private OutputStream output;
+
+	/** File stream of the current segment to sync it to the disk */
+	private FileOutputStream segmentStream;
+
+	/** Lock regarding the current segment */
+	private final Lock lock = new ReentrantLock();
+
+	/** Lock to run only one compaction at the same time */
+	private final Lock compactionLock = new ReentrantLock();
+
+	/** Executor of the background compaction */
+	private ScheduledExecutorService compactor;
+
+	/** Lock regarding the sync of the current segment, taken after the lock */
+	private final Lock syncLock = new ReentrantLock();
+
+	/** Condition regarding records appended to the current batch */
+	private final Condition appendedRecords = lock.newCondition();
+
+	/** Condition regarding records synced to the disk */
+	private final Condition syncedRecords = lock.newCondition();
+
+	/** Number of records appended since the start */
+	private long appended;
+
+	/** Number of records synced to the disk since the start */
+	private long synced;
+
+	/** Time in milliseconds a batch collects records or -1 without group commit */
+	private long commitDelay = -1;
+
+	/** Number of records after which a batch is synced before the delay ends */
+	private int commitBatch;
+
+	/** Thread syncing the batches or null without group commit */
+	private Thread committer;
+
+	/** Status of the group commit */
+	private boolean isCommitStopped;
+
+	/** Error of the last sync or null */
+	private IOException syncError;
+
+	/** Number of records appended before the last sync failed */
+	private long failed;
+
+	/** Callbacks waiting for records to be synced in the order of their targets */
+	private final Queue<Waiter> waiters = new PriorityQueue<>(Comparator.comparingLong((Waiter w) -> w.target));
+
+	/**
+	 * Callback waiting for the records appended before it to be synced
+	 */
+	private static final class Waiter {
+
+		/** Number of records which have to be synced */
+		private final long target;
+
+		/** Callback to run once the records are synced or failed */
+		private final Runnable callback;
+
+		/**
+		 * Constructor of the waiter which initializes the attributes.
+		 * 
+		 * @param target
+		 *            Number of records which have to be synced
+		 * @param callback
+		 *            Callback to run once the records are synced or failed
+		 */
+		private Waiter(long target, Runnable callback) {
+			this.target = target;
+			this.callback = callback;
+		}
+	}
+
+	/**
+	 * Constructor of the log which initializes the attributes.
+	 * 
+	 * @param directory
+	 *            Directory of the segments and snapshots
+	 */
+	public LikeLog(String directory) {
+		this.directory = new File(directory);
+	}
+
+	/**
+	 * Checks whether a snapshot exists.
+	 * 
+	 * @return Existence of a snapshot
+	 */
+	public boolean exists() {
+		return !list(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX).isEmpty();
+	}
+
+	/**
+	 * Creates the log with an initial snapshot, e.g. after importing the XML
+	 * file.
+	 * 
+	 * @param levels
+	 *            User names per level
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	public void create(Map<String, Set<String>> levels) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("The directory " + directory + " could not be created.");
+		}
+		writeSnapshot(0, levels);
+	}
+
+	/**
+	 * Loads the latest snapshot, replays the segments written after it and
+	 * starts a new segment for appending.
+	 * 
+	 * @param levels
+	 *            Empty map which is filled with the user names per level
+	 * @return Number of replayed records
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	public int recover(Map<String, Set<String>> levels) throws IOException {
+		List<Long> snapshots = list(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+		if (snapshots.isEmpty()) {
+			throw new IOException("There is no snapshot in " + directory + ".");
+		}
+		long base = snapshots.get(snapshots.size() - 1);
+		levels.putAll(readSnapshot(base));
+		int records = 0;
+		long next = base;
+		for (long s : list(SEGMENT_PREFIX, SEGMENT_SUFFIX)) {
+			if (s >= base) {
+				records += replay(s, levels);
+				next = s + 1;
+			}
+		}
+		lock.lock();
+		try {
+			open(next);
+		} finally {
+			lock.unlock();
+		}
+		return records;
+	}
+
+	/**
+	 * Appends a record to the current segment without flushing it.
+	 * 
+	 * @param level
+	 *            ID of the level
+	 * @param user
+	 *            Name of the user
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	public void append(String level, String user) throws IOException {
+		byte[] levelBytes = level.getBytes(StandardCharsets.UTF_8);
+		byte[] userBytes = user.getBytes(StandardCharsets.UTF_8);
+		lock.lock();
+		try {
+			output.write(levelBytes);
+			output.write(SEPARATOR);
+			output.write(userBytes);
+			output.write(END);
+			segmentSize += levelBytes.length + userBytes.length + 2;
+			++appended;
+			if (committer != null) {
+				appendedRecords.signal();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Flushes the appended records and starts a new segment if the current one
+	 * is full. With group commit, the records are flushed by the batch.
+	 * 
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	public void flush() throws IOException {
+		lock.lock();
+		try {
+			if (committer == null) {
+				output.flush();
+			}
+			if (segmentSize >= SEGMENT_SIZE) {
+				roll();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Enables the group commit. It has to be set before the group commit is
+	 * started.
+	 * 
+	 * @param delay
+	 *            Time in milliseconds a batch collects records
+	 * @param batch
+	 *            Number of records after which a batch is synced before the
+	 *            delay ends
+	 */
+	public void setGroupCommit(long delay, int batch) {
+		if (delay < 0 || batch < 1) {
+			throw new IllegalArgumentException("The commit delay must not be negative and the batch must be positive.");
+		}
+		this.commitDelay = delay;
+		this.commitBatch = batch;
+	}
+
+	/**
+	 * Starts syncing the batches in the background if the group commit is
+	 * enabled.
+	 */
+	public void startGroupCommit() {
+		if (commitDelay < 0) {
+			return;
+		}
+		committer = new Thread(this::runGroupCommit, "group-commit");
+		committer.setDaemon(true);
+		committer.start();
+	}
+
+	/**
+	 * Waits until the records appended so far are synced to the disk. Without
+	 * group commit, it returns immediately.
+	 * 
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	public void commit() throws IOException {
+		if (committer == null) {
+			return;
+		}
+		lock.lock();
+		try {
+			long target = appended;
+			while (synced < target) {
+				if (syncError != null && target <= failed) {
+					throw new IOException("The likes could not be synced: " + syncError.getMessage(), syncError);
+				}
+				syncedRecords.await();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("The commit was interrupted.");
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Checks whether the group commit was started.
+	 * 
+	 * @return Status of the group commit
+	 */
+	public boolean isGroupCommit() {
+		return committer != null;
+	}
+
+	/**
+	 * Calls back once the records appended so far are synced to the disk or
+	 * their sync failed, instead of waiting for it. The callback runs on the
+	 * thread syncing the records while holding the lock, so it has to return
+	 * quickly without using the log. If the records are synced already, it
+	 * runs immediately.
+	 * 
+	 * @param callback
+	 *            Callback to run once the records are synced or failed
+	 * @return Number of records which have to be synced regarding checkSynced
+	 */
+	public long whenSynced(Runnable callback) {
+		lock.lock();
+		try {
+			long target = appended;
+			waiters.add(new Waiter(target, callback));
+			releaseWaiters();
+			return target;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Checks whether the records of a callback were synced after it ran.
+	 * 
+	 * @param target
+	 *            Number of records which had to be synced
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	public void checkSynced(long target) throws IOException {
+		lock.lock();
+		try {
+			if (synced < target && syncError != null && target <= failed) {
+				throw new IOException("The likes could not be synced: " + syncError.getMessage(), syncError);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Runs the callbacks whose records are synced or failed while holding the
+	 * lock.
+	 */
+	private void releaseWaiters() {
+		Waiter waiter;
+		while ((waiter = waiters.peek()) != null
+				&& (waiter.target <= synced || (syncError != null && waiter.target <= failed))) {
+			waiters.poll().callback.run();
+		}
+	}
+
+	/**
+	 * Syncs the batches until the group commit is stopped. A batch starts with
+	 * the first record which is not synced and ends after the delay or as soon
+	 * as it contains enough records. Only flushing holds the lock, so writers
+	 * append the next batch while the current one is synced. If a sync fails,
+	 * the writers of the batch get the error and it is retried with the next
+	 * appended record or by closing the log.
+	 */
+	private void runGroupCommit() {
+		while (true) {
+			long upTo;
+			FileOutputStream stream;
+			lock.lock();
+			try {
+				while ((appended == synced || appended <= failed) && !isCommitStopped) {
+					appendedRecords.await();
+				}
+				if (appended == synced) {
+					return;
+				}
+				long remaining = TimeUnit.MILLISECONDS.toNanos(commitDelay);
+				while (appended - synced < commitBatch && remaining > 0 && !isCommitStopped) {
+					remaining = appendedRecords.awaitNanos(remaining);
+				}
+				upTo = appended;
+				stream = segmentStream;
+				output.flush();
+				syncLock.lock();
+			} catch (InterruptedException e) {
+				return;
+			} catch (IOException e) {
+				if (fail(e, appended)) {
+					return;
+				}
+				continue;
+			} finally {
+				lock.unlock();
+			}
+			IOException error = null;
+			try {
+				stream.getFD().sync();
+			} catch (IOException e) {
+				error = e;
+			} finally {
+				syncLock.unlock();
+			}
+			if (error != null) {
+				if (fail(error, upTo)) {
+					return;
+				}
+				continue;
+			}
+			lock.lock();
+			try {
+				synced = Math.max(synced, upTo);
+				syncedRecords.signalAll();
+				releaseWaiters();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Reports a failed sync to the writers of the batch.
+	 * 
+	 * @param error
+	 *            Exception of the sync
+	 * @param upTo
+	 *            Number of records appended before the sync
+	 * @return Whether the group commit is stopped
+	 */
+	private boolean fail(IOException error, long upTo) {
+		System.out.print(error.getMessage());
+		lock.lock();
+		try {
+			syncError = error;
+			failed = Math.max(failed, upTo);
+			syncedRecords.signalAll();
+			releaseWaiters();
+			return isCommitStopped;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Starts the periodic compaction in the background, which is skipped while
+	 * it is not due.
+	 */
+	public void startCompaction() {
+		compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "compaction");
+			thread.setDaemon(true);
+			return thread;
+		});
+		compactor.scheduleWithFixedDelay(() -> {
+			try {
+				if (isCompactionDue()) {
+					compact();
+				}
+			} catch (IOException e) {
+				System.out.print(e.getMessage());
+			}
+		}, COMPACTION_INTERVAL, COMPACTION_INTERVAL, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Checks whether the segments written after the latest snapshot are large
+	 * enough to be worth rewriting the snapshot, i.e. a quarter of its size
+	 * and at least 1 MB, so that few new records do not cost a full rewrite.
+	 * 
+	 * @return Whether a compaction is due
+	 */
+	private boolean isCompactionDue() {
+		List<Long> snapshots = list(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+		long base = snapshots.get(snapshots.size() - 1);
+		long size = 0;
+		for (long s : list(SEGMENT_PREFIX, SEGMENT_SUFFIX)) {
+			if (s >= base) {
+				size += file(SEGMENT_PREFIX, s, SEGMENT_SUFFIX).length();
+			}
+		}
+		return size >= Math.max(MIN_COMPACTION_SIZE, file(SNAPSHOT_PREFIX, base, SNAPSHOT_SUFFIX).length() / 4);
+	}
+
+	/**
+	 * Merges the latest snapshot and the closed segments into a new snapshot
+	 * and deletes the merged files. Only starting a new segment blocks the
+	 * appending of records.
+	 * 
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	public void compact() throws IOException {
+		compactionLock.lock();
+		try {
+			long upTo;
+			lock.lock();
+			try {
+				if (segmentSize > 0) {
+					roll();
+				}
+				upTo = segment;
+			} finally {
+				lock.unlock();
+			}
+			List<Long> snapshots = list(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+			long base = snapshots.get(snapshots.size() - 1);
+			List<Long> segments = new ArrayList<>();
+			for (long s : list(SEGMENT_PREFIX, SEGMENT_SUFFIX)) {
+				if (s >= base && s < upTo && file(SEGMENT_PREFIX, s, SEGMENT_SUFFIX).length() > 0) {
+					segments.add(s);
+				}
+			}
+			if (!segments.isEmpty()) {
+				long start = System.currentTimeMillis();
+				Map<String, Set<String>> levels = readSnapshot(base);
+				int records = 0;
+				for (long s : segments) {
+					records += replay(s, levels);
+				}
+				writeSnapshot(upTo, levels);
+				base = upTo;
+				System.out.println("Likes were compacted: " + records + " records in "
+						+ (System.currentTimeMillis() - start) + " ms...");
+			}
+			for (long s : list(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX)) {
+				if (s < base) {
+					Files.deleteIfExists(file(SNAPSHOT_PREFIX, s, SNAPSHOT_SUFFIX).toPath());
+				}
+			}
+			for (long s : list(SEGMENT_PREFIX, SEGMENT_SUFFIX)) {
+				File segmentFile = file(SEGMENT_PREFIX, s, SEGMENT_SUFFIX);
+				if (s < base || s < upTo && segmentFile.length() == 0) {
+					Files.deleteIfExists(segmentFile.toPath());
+				}
+			}
+		} finally {
+			compactionLock.unlock();
+		}
+	}
+
+	/**
+	 * Stops the compaction and closes the current segment after its appended
+	 * records were synced to the disk.
+	 * 
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	public void close() throws IOException {
+		if (compactor != null) {
+			compactor.shutdownNow();
+		}
+		if (committer != null) {
+			lock.lock();
+			try {
+				isCommitStopped = true;
+				appendedRecords.signal();
+			} finally {
+				lock.unlock();
+			}
+			try {
+				committer.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		lock.lock();
+		try {
+			if (output != null) {
+				closeSegment();
+				output = null;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Closes the current segment and opens the next one while holding the
+	 * lock.
+	 * 
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	private void roll() throws IOException {
+		closeSegment();
+		open(segment + 1);
+	}
+
+	/**
+	 * Flushes the current segment, syncs it to the disk and closes it while
+	 * holding the lock, so that no appended record is lost if the machine
+	 * fails afterwards. Writers waiting for their records are released.
+	 * 
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	private void closeSegment() throws IOException {
+		syncLock.lock();
+		try {
+			output.flush();
+			segmentStream.getFD().sync();
+			synced = appended;
+			syncedRecords.signalAll();
+			releaseWaiters();
+		} finally {
+			syncLock.unlock();
+			output.close();
+		}
+	}
+
+	/**
+	 * Opens a segment for appending while holding the lock.
+	 * 
+	 * @param number
+	 *            Number of the segment
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	private void open(long number) throws IOException {
+		segment = number;
+		segmentStream = new FileOutputStream(file(SEGMENT_PREFIX, number, SEGMENT_SUFFIX), true);
+		output = new BufferedOutputStream(segmentStream);
+		segmentSize = 0;
+	}
+
+	/**
+	 * Replays the complete records of a segment. An incomplete last record,
+	 * e.g. after a crash, is ignored.
+	 * 
+	 * @param number
+	 *            Number of the segment
+	 * @param levels
+	 *            User names per level
+	 * @return Number of replayed records
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	private int replay(long number, Map<String, Set<String>> levels) throws IOException {
+		int records = 0;
+		try (InputStream input = new BufferedInputStream(
+				new FileInputStream(file(SEGMENT_PREFIX, number, SEGMENT_SUFFIX)))) {
+			ByteArrayOutputStream record = new ByteArrayOutputStream();
+			int separator = -1;
+			int b;
+			while ((b = input.read()) >= 0) {
+				if (b == END) {
+					if (separator >= 0) {
+						byte[] bytes = record.toByteArray();
+						Set<String> users = levels
+								.get(new String(bytes, 0, separator, StandardCharsets.UTF_8));
+						if (users != null) {
+							users.add(new String(bytes, separator + 1, bytes.length - separator - 1,
+									StandardCharsets.UTF_8));
+							++records;
+						}
+					}
+					record.reset();
+					separator = -1;
+				} else {
+					if (b == SEPARATOR && separator < 0) {
+						separator = record.size();
+					}
+					record.write(b);
+				}
+			}
+		}
+		return records;
+	}
+
+	/**
+	 * Reads a snapshot.
+	 * 
+	 * @param number
+	 *            Number of the snapshot
+	 * @return User names per level
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	private Map<String, Set<String>> readSnapshot(long number) throws IOException {
+		Map<String, Set<String>> levels = new LinkedHashMap<>();
+		try (DataInputStream input = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(file(SNAPSHOT_PREFIX, number, SNAPSHOT_SUFFIX))))) {
+			int magic = input.readInt();
+			if (magic != SNAPSHOT_MAGIC && magic != LEGACY_SNAPSHOT_MAGIC) {
+				throw new IOException("The snapshot " + number + " is invalid.");
+			}
+			boolean isLegacy = magic == LEGACY_SNAPSHOT_MAGIC;
+			int levelCount = input.readInt();
+			for (int i = 0; i < levelCount; ++i) {
+				String level = isLegacy ? input.readUTF() : readString(input, number);
+				int userCount = input.readInt();
+				Set<String> users = new UserSet(userCount);
+				for (int j = 0; j < userCount; ++j) {
+					users.add(isLegacy ? input.readUTF() : readString(input, number));
+				}
+				levels.put(level, users);
+			}
+		}
+		return levels;
+	}
+
+	/**
+	 * Reads a string of a snapshot as its length and its UTF-8 bytes.
+	 * 
+	 * @param input
+	 *            Stream of the snapshot
+	 * @param number
+	 *            Number of the snapshot
+	 * @return Read string
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	private static String readString(DataInputStream input, long number) throws IOException {
+		int length = input.readInt();
+		if (length < 0) {
+			throw new IOException("The snapshot " + number + " is invalid.");
+		}
+		byte[] bytes = new byte[length];
+		input.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Writes a string to a snapshot as its length and its UTF-8 bytes, so
+	 * that unlike modified UTF-8 it is not limited to 64 KB, just like the
+	 * records of the segments.
+	 * 
+	 * @param output
+	 *            Stream of the snapshot
+	 * @param value
+	 *            String to write
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	private static void writeString(DataOutputStream output, String value) throws IOException {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		output.writeInt(bytes.length);
+		output.write(bytes);
+	}
+
+	/**
+	 * Writes a snapshot to a temporary file, forces it to the disk and renames
+	 * it atomically.
+	 * 
+	 * @param number
+	 *            Number of the snapshot
+	 * @param levels
+	 *            User names per level
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	private void writeSnapshot(long number, Map<String, Set<String>> levels) throws IOException {
+		File snapshot = file(SNAPSHOT_PREFIX, number, SNAPSHOT_SUFFIX);
+		File tmp = new File(directory, snapshot.getName() + ".tmp");
+		try (FileOutputStream stream = new FileOutputStream(tmp)) {
+			DataOutputStream output = new DataOutputStream(new BufferedOutputStream(stream));
+			output.writeInt(SNAPSHOT_MAGIC);
+			output.writeInt(levels.size());
+			for (Map.Entry<String, Set<String>> level : levels.entrySet()) {
+				writeString(output, level.getKey());
+				output.writeInt(level.getValue().size());
+				for (String user : level.getValue()) {
+					writeString(output, user);
+				}
+			}
+			output.flush();
+			stream.getFD().sync();
+		}
+		Files.move(tmp.toPath(), snapshot.toPath(), StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Lists the numbers of the files with a prefix and suffix in ascending
+	 * order.
+	 * 
+	 * @param prefix
+	 *            Prefix of the files
+	 * @param suffix
+	 *            Suffix of the files
+	 * @return Sorted numbers
+	 */
+	private List<Long> list(String prefix, String suffix) {
+		List<Long> numbers = new ArrayList<>();
+		String[] names = directory.list();
+		if (names != null) {
+			for (String name : names) {
+				if (name.startsWith(prefix) && name.endsWith(suffix)) {
+					try {
+						numbers.add(Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length())));
+					} catch (NumberFormatException e) {
+						// Not a file of the log
+					}
+				}
+			}
+		}
+		Collections.sort(numbers);
+		return numbers;
+	}
+
+	/**
+	 * Gets the file with a prefix, number and suffix.
+	 * 
+	 * @param prefix
+	 *            Prefix of the file
+	 * @param number
+	 *            Number of the file
+	 * @param suffix
+	 *            Suffix of the file
+	 * @return File in the directory of the log
+	 */
+	private File file(String prefix, long number, String suffix) {
+		return new File(directory, prefix + number + suffix);
+	}
+}
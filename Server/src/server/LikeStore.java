@@ -0,0 +1,968 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Represents the likes of all levels. The likes are kept in a hashed set per
+ * level and persisted by a log of segments and snapshots, so that a restart
+ * only loads the latest snapshot and replays the segments written after it. The
+ * counts are kept in a memory-mapped file next to the log for other processes.
+ * Each accepted like also updates the ranking of the levels and the index of
+ * the levels per user. Reads are lock-free since each level publishes an
+ * immutable snapshot after each accepted like. Writes lock only the stripe of
+ * their level. Locks instead of synchronized methods are used so that virtual
+ * threads are not pinned while writing the log.
+ * 
+ * @author Rune Krauss
+ * @author Steffen Gerken
+ * @author Niels Arbatschat
+ */
+public class LikeStore {
+
+	/**
+	 * Result of adding a like
+	 */
+	public enum AddResult {
+		ACCEPTED, EXISTS, NO_LEVEL
+	}
+
+	/** Separator between level and user name in the legacy journal */
+	private static final char SEPARATOR = '\t';
+
+	/** Number of imported likes after which the progress is logged */
+	private static final int IMPORT_PROGRESS = 1000000;
+
+	/** Number of locks regarding the writes */
+	private static final int STRIPES = 64;
+
+	/** Number of optimistic attempts before a consistent read locks */
+	private static final int OPTIMISTIC_READS = 8;
+
+	/** Prefix of the level IDs which are indexed by their number */
+	private static final String LEVEL_PREFIX = "level";
+
+	/** Highest number of a level which is indexed by its number */
+	private static final int MAX_NUMBER = 65535;
+
+	/**
+	 * Immutable state of a level which is published after each accepted like
+	 */
+	public static final class Snapshot {
+
+		/** Number of likes */
+		private final int count;
+
+		/** Version of the store when the snapshot was published */
+		private final long version;
+
+		/**
+		 * Constructor of the snapshot which initializes the attributes.
+		 * 
+		 * @param count
+		 *            Number of likes
+		 * @param version
+		 *            Version of the store
+		 */
+		private Snapshot(int count, long version) {
+			this.count = count;
+			this.version = version;
+		}
+
+		/**
+		 * Gets the number of likes.
+		 * 
+		 * @return Number of likes
+		 */
+		public int getCount() {
+			return count;
+		}
+
+		/**
+		 * Gets the version of the store when the snapshot was published. It
+		 * changes with each accepted like of the level, but only within one
+		 * run of the store.
+		 * 
+		 * @return Version of the store
+		 */
+		public long getVersion() {
+			return version;
+		}
+	}
+
+	/**
+	 * Level with its user names which are guarded by its stripe
+	 */
+	private static final class Level {
+
+		/** ID of the level */
+		private final String id;
+
+		/** Index of the level in the order of the XML file */
+		private final int index;
+
+		/** Stripe regarding the writes */
+		private final int stripe;
+
+		/** Names of the users who like the level */
+		private final UserSet users;
+
+		/** Latest published state */
+		private volatile Snapshot snapshot;
+
+		/**
+		 * Constructor of the level which initializes the attributes.
+		 * 
+		 * @param id
+		 *            ID of the level
+		 * @param index
+		 *            Index of the level in the order of the XML file
+		 * @param users
+		 *            Names of the users who like the level
+		 */
+		private Level(String id, int index, UserSet users) {
+			this.id = id;
+			this.index = index;
+			this.stripe = index % STRIPES;
+			this.users = users;
+			this.snapshot = new Snapshot(users.size(), 0);
+		}
+	}
+
+	/** Levels in the order of the XML file, published once after loading */
+	private volatile Map<String, Level> levels = Collections.emptyMap();
+
+	/** Levels indexed by the number of their ID, e.g. 1 regarding 'level1' */
+	private volatile Level[] numbered = new Level[0];
+
+	/** IDs of the levels by their index, published once after loading */
+	private volatile String[] ids = new String[0];
+
+	/** Levels which each user likes */
+	private final Map<String, LevelSet> liked = new ConcurrentHashMap<>();
+
+	/** Sets of one level by its index which are shared by the users */
+	private volatile LevelSet[] singles = new LevelSet[0];
+
+	/** Levels ranked by their likes, published once after loading */
+	private volatile Leaderboard leaderboard = new Leaderboard(new String[0], new int[0]);
+
+	/** Log to persist the likes */
+	private final LikeLog log;
+
+	/** Memory-mapped like counts per level */
+	private final LikeCounters counters;
+
+	/** Locks regarding the writes, each level belongs to one stripe */
+	private final Lock[] stripes = new Lock[STRIPES];
+
+	/** Number of writes in progress */
+	private final AtomicInteger writing = new AtomicInteger();
+
+	/** Number of published snapshots */
+	private final AtomicLong version = new AtomicLong();
+
+	/** Usage of a Bloom filter in front of the user names per level */
+	private boolean bloomFilter;
+
+	/** Latencies to add likes including waiting for the locks */
+	private final LatencyHistogram writeLatency = new LatencyHistogram();
+
+	/**
+	 * Flags of the threads which do not wait for their likes to be synced,
+	 * set as long as an added like was not handed over by takeUncommitted
+	 */
+	private final ThreadLocal<boolean[]> uncommitted = new ThreadLocal<>();
+
+	/** Listener regarding the likes accepted from clients or null */
+	private volatile BiConsumer<String, String> listener;
+
+	/**
+	 * Constructor of the store which initializes the attributes.
+	 * 
+	 * @param directory
+	 *            Directory of the log
+	 */
+	public LikeStore(String directory) {
+		this.log = new LikeLog(directory);
+		this.counters = new LikeCounters(new File(directory, "counters.bin"));
+		for (int i = 0; i < STRIPES; ++i) {
+			stripes[i] = new ReentrantLock();
+		}
+	}
+
+	/**
+	 * Checks whether the log of the store exists already.
+	 * 
+	 * @return Existence of the log
+	 */
+	public boolean exists() {
+		return log.exists();
+	}
+
+	/**
+	 * Gets the latencies to add likes including waiting for the locks,
+	 * writing the log and, with group commit, syncing it.
+	 * 
+	 * @return Latencies to add likes
+	 */
+	public LatencyHistogram getWriteLatency() {
+		return writeLatency;
+	}
+
+	/**
+	 * Sets whether a Bloom filter is used in front of the user names of each
+	 * level, so that most new names are accepted without probing the hash
+	 * table. It has to be set before loading.
+	 * 
+	 * @param bloomFilter
+	 *            Usage of a Bloom filter
+	 */
+	public void setBloomFilter(boolean bloomFilter) {
+		this.bloomFilter = bloomFilter;
+	}
+
+	/**
+	 * Enables the group commit of the log, so that an accepted like is only
+	 * answered after it was synced to the disk together with the likes of
+	 * concurrent writers. It has to be set before loading.
+	 * 
+	 * @param delay
+	 *            Time in milliseconds a batch collects likes
+	 * @param batch
+	 *            Number of likes after which a batch is synced before the
+	 *            delay ends
+	 */
+	public void setGroupCommit(long delay, int batch) {
+		log.setGroupCommit(delay, batch);
+	}
+
+	/**
+	 * Sets the listener which is called with the level ID and the user name
+	 * of each accepted like, whether it came from a client or was merged from
+	 * another node. A like which exists already is not passed on. It is
+	 * called while the stripe of the level is locked, so it has to return
+	 * quickly.
+	 * 
+	 * @param listener
+	 *            Listener regarding accepted likes or null
+	 */
+	public void setListener(BiConsumer<String, String> listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Counts the bytes read from a stream.
+	 */
+	private static class CountingInputStream extends FilterInputStream {
+
+		/** Number of bytes read */
+		private long count;
+
+		/**
+		 * Constructor of the stream which initializes the attributes.
+		 * 
+		 * @param input
+		 *            Stream to count
+		 */
+		private CountingInputStream(InputStream input) {
+			super(input);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0) {
+				++count;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0) {
+				count += n;
+			}
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			count += skipped;
+			return skipped;
+		}
+	}
+
+	/**
+	 * Imports the likes of the legacy XML file and its journal into a new log.
+	 * The XML file is streamed element by element, so apart from the likes
+	 * themselves, the memory does not grow with its size. The user names are
+	 * collected in the sets which the store keeps after loading. The progress
+	 * is logged once per million likes.
+	 * 
+	 * @param xmlFile
+	 *            Path to the XML file
+	 * @param journalFile
+	 *            Path to the journal of accepted likes
+	 * @throws XMLStreamException
+	 *             Signals that the XML file is not well-formed.
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	public void importXML(String xmlFile, String journalFile) throws XMLStreamException, IOException {
+		long start = System.currentTimeMillis();
+		Map<String, Set<String>> imported = new LinkedHashMap<>();
+		long size = new File(xmlFile).length();
+		long likes = 0;
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+		try (CountingInputStream input = new CountingInputStream(new FileInputStream(xmlFile))) {
+			XMLStreamReader reader = factory.createXMLStreamReader(input);
+			try {
+				Set<String> users = null;
+				int depth = 0;
+				int levelDepth = -1;
+				while (reader.hasNext()) {
+					int event = reader.next();
+					if (event == XMLStreamConstants.START_ELEMENT) {
+						++depth;
+						String name = reader.getLocalName();
+						if (name.equals("level")) {
+							String id = reader.getAttributeValue(null, "id");
+							users = imported.computeIfAbsent(id != null ? id : "", i -> new UserSet());
+							levelDepth = depth;
+						} else if (name.equals("user") && users != null) {
+							String user = reader.getAttributeValue(null, "name");
+							users.add(user != null ? user : "");
+							if (++likes % IMPORT_PROGRESS == 0) {
+								logImport("XML file is imported", imported.size(), likes, input.count, size, start);
+							}
+						}
+					} else if (event == XMLStreamConstants.END_ELEMENT) {
+						if (depth == levelDepth) {
+							users = null;
+							levelDepth = -1;
+						}
+						--depth;
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		}
+		File journal = new File(journalFile);
+		if (journal.exists()) {
+			try (BufferedReader br = new BufferedReader(
+					new InputStreamReader(new FileInputStream(journal), StandardCharsets.UTF_8))) {
+				String record;
+				while ((record = br.readLine()) != null) {
+					int separator = record.indexOf(SEPARATOR);
+					if (separator < 0) {
+						continue;
+					}
+					Set<String> users = imported.get(record.substring(0, separator));
+					if (users != null) {
+						users.add(record.substring(separator + 1));
+					}
+				}
+			}
+		}
+		log.create(imported);
+		logImport("XML file was imported", imported.size(), likes, size, size, start);
+	}
+
+	/**
+	 * Logs the progress of the import including its throughput.
+	 * 
+	 * @param msg
+	 *            Beginning of the message
+	 * @param levels
+	 *            Number of imported levels
+	 * @param likes
+	 *            Number of imported likes from the XML file
+	 * @param read
+	 *            Number of bytes read from the XML file
+	 * @param size
+	 *            Size of the XML file in bytes
+	 * @param start
+	 *            Start of the import in milliseconds
+	 */
+	private static void logImport(String msg, int levels, long likes, long read, long size, long start) {
+		long millis = Math.max(1, System.currentTimeMillis() - start);
+		double mb = 1024.0 * 1024.0;
+		System.out.println(String.format(Locale.ROOT,
+				"%s: %d levels, %d likes, %.1f of %.1f MB in %d ms (%.1f MB/s, %d likes/s)...", msg, levels, likes,
+				read / mb, size / mb, millis, read / mb * 1000 / millis, likes * 1000 / millis));
+	}
+
+	/**
+	 * Loads the latest snapshot, replays the log written after it and starts
+	 * the background compaction.
+	 * 
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	public void load() throws IOException {
+		long start = System.currentTimeMillis();
+		Map<String, Set<String>> recovered = new LinkedHashMap<>();
+		int records = log.recover(recovered);
+		counters.open(recovered);
+		Map<String, Level> loaded = new LinkedHashMap<>();
+		for (Map.Entry<String, Set<String>> level : recovered.entrySet()) {
+			UserSet users = level.getValue() instanceof UserSet ? (UserSet) level.getValue()
+					: new UserSet(level.getValue());
+			if (bloomFilter) {
+				users.useBloomFilter();
+			}
+			loaded.put(level.getKey(), new Level(level.getKey(), loaded.size(), users));
+		}
+		String[] ids = new String[loaded.size()];
+		int[] likes = new int[ids.length];
+		singles = new LevelSet[ids.length];
+		for (int i = 0; i < ids.length; ++i) {
+			singles[i] = LevelSet.EMPTY.with(i);
+		}
+		for (Level level : loaded.values()) {
+			ids[level.index] = level.id;
+			likes[level.index] = level.users.size();
+			for (String user : level.users) {
+				index(user, level.index);
+			}
+		}
+		this.ids = ids;
+		leaderboard = new Leaderboard(ids, likes);
+		numbered = number(loaded);
+		levels = Collections.unmodifiableMap(loaded);
+		log.startCompaction();
+		log.startGroupCommit();
+		System.out.println("Likes were loaded: " + levels.size() + " levels, " + records + " log records in "
+				+ (System.currentTimeMillis() - start) + " ms...");
+	}
+
+	/**
+	 * Counts the likes of a level without locking.
+	 * 
+	 * @param level
+	 *            ID of the level
+	 * @return Number of likes or zero if the level does not exist
+	 */
+	public int count(String level) {
+		Level l = levels.get(level);
+		return l == null ? 0 : l.snapshot.count;
+	}
+
+	/**
+	 * Gets the latest published state of a level without locking.
+	 * 
+	 * @param level
+	 *            ID of the level
+	 * @return State of the level or null if the level does not exist
+	 */
+	public Snapshot snapshot(String level) {
+		Level l = levels.get(level);
+		return l == null ? null : l.snapshot;
+	}
+
+	/**
+	 * Counts the likes of a level by the number of its ID without locking,
+	 * e.g. 1 regarding 'level1'.
+	 * 
+	 * @param number
+	 *            Number of the level
+	 * @return Number of likes or zero if the level does not exist
+	 */
+	public int count(int number) {
+		Level l = level(number);
+		return l == null ? 0 : l.snapshot.count;
+	}
+
+	/**
+	 * Counts the likes of several levels at the same point in time.
+	 * 
+	 * @param levelList
+	 *            IDs of the levels
+	 * @return Number of likes per level or zero if a level does not exist
+	 */
+	public int[] count(List<String> levelList) {
+		return readConsistent(() -> {
+			int[] counts = new int[levelList.size()];
+			for (int i = 0; i < counts.length; ++i) {
+				counts[i] = count(levelList.get(i));
+			}
+			return counts;
+		});
+	}
+
+	/**
+	 * Counts the likes of all levels at the same point in time.
+	 * 
+	 * @return Number of likes per level in the order of the XML file
+	 */
+	public Map<String, Integer> countAll() {
+		return readConsistent(() -> {
+			Map<String, Integer> counts = new LinkedHashMap<>();
+			for (Level level : levels.values()) {
+				counts.put(level.id, level.snapshot.count);
+			}
+			return counts;
+		});
+	}
+
+	/**
+	 * Gets the levels with the most likes from the ranking, which is updated
+	 * with each accepted like instead of counting all levels.
+	 * 
+	 * @param n
+	 *            Maximum number of levels
+	 * @param filter
+	 *            Filter regarding the IDs of the levels to rank or null if
+	 *            all levels are ranked
+	 * @return Likes per level in descending order
+	 */
+	public Map<String, Integer> top(int n, Predicate<String> filter) {
+		return leaderboard.top(n, filter);
+	}
+
+	/**
+	 * Gets the levels which a user likes from the index of the users, which
+	 * is updated with each accepted like instead of searching all levels.
+	 * 
+	 * @param user
+	 *            Name of the user
+	 * @param filter
+	 *            Filter regarding the IDs of the levels or null if all levels
+	 *            are answered
+	 * @return IDs of the levels in the order of the XML file
+	 */
+	public List<String> liked(String user, Predicate<String> filter) {
+		String[] ids = this.ids;
+		List<String> levelList = new ArrayList<>();
+		for (int index : liked.getOrDefault(user, LevelSet.EMPTY).toArray()) {
+			if (filter == null || filter.test(ids[index])) {
+				levelList.add(ids[index]);
+			}
+		}
+		return levelList;
+	}
+
+	/**
+	 * Adds a like of a user to a level and appends it to the log. Only the
+	 * stripe of the level is locked, so likes of other levels are added
+	 * concurrently. With group commit, an accepted like is synced after the
+	 * stripe was unlocked.
+	 * 
+	 * @param level
+	 *            ID of the level
+	 * @param user
+	 *            Name of the user
+	 * @return Result of adding the like
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	public AddResult add(String level, String user) throws IOException {
+		return add(levels.get(level), user);
+	}
+
+	/**
+	 * Merges a like which another node has accepted. Since the likes of a
+	 * level only grow, merging is idempotent. A like which is new to this node
+	 * is passed on to the listener like an accepted one, so that it reaches
+	 * the nodes which are only peers of this node, while a known like ends
+	 * the replication.
+	 * 
+	 * @param level
+	 *            ID of the level
+	 * @param user
+	 *            Name of the user
+	 * @return Result of merging the like
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	public AddResult merge(String level, String user) throws IOException {
+		return add(levels.get(level), user);
+	}
+
+	/**
+	 * Gets the names of the users who like a level.
+	 * 
+	 * @param level
+	 *            ID of the level
+	 * @return Names in the order of their likes or an empty list if the level
+	 *         does not exist
+	 */
+	public List<String> users(String level) {
+		Level l = levels.get(level);
+		if (l == null) {
+			return Collections.emptyList();
+		}
+		Lock stripe = stripes[l.stripe];
+		stripe.lock();
+		try {
+			return new ArrayList<>(l.users);
+		} finally {
+			stripe.unlock();
+		}
+	}
+
+	/**
+	 * Adds a like of a user to a level by the number of its ID, e.g. 1
+	 * regarding 'level1'.
+	 * 
+	 * @param number
+	 *            Number of the level
+	 * @param user
+	 *            Name of the user
+	 * @return Result of adding the like
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	public AddResult add(int number, String user) throws IOException {
+		return add(level(number), user);
+	}
+
+	/**
+	 * Adds a like while holding the stripe of the level.
+	 * 
+	 * @param l
+	 *            Level of the like or null if it does not exist
+	 * @param user
+	 *            Name of the user
+	 * @return Result of adding the like
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	private AddResult add(Level l, String user) throws IOException {
+		if (l == null) {
+			return AddResult.NO_LEVEL;
+		}
+		long start = System.nanoTime();
+		try {
+			AddResult result;
+			Lock stripe = stripes[l.stripe];
+			stripe.lock();
+			writing.incrementAndGet();
+			try {
+				result = addLocked(l, user);
+				log.flush();
+			} finally {
+				writing.decrementAndGet();
+				stripe.unlock();
+			}
+			if (result == AddResult.ACCEPTED) {
+				commit();
+			}
+			return result;
+		} finally {
+			writeLatency.record(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Adds several likes at once and appends the accepted ones to the log with
+	 * a single flush. The stripes of the levels are locked in ascending order.
+	 * With group commit, the accepted likes are synced after the stripes were
+	 * unlocked.
+	 * 
+	 * @param levelList
+	 *            IDs of the levels
+	 * @param userList
+	 *            Names of the users regarding the levels
+	 * @return Result of adding each like
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	public AddResult[] add(List<String> levelList, List<String> userList) throws IOException {
+		long start = System.nanoTime();
+		Map<String, Level> levels = this.levels;
+		boolean[] locked = new boolean[STRIPES];
+		for (String level : levelList) {
+			Level l = levels.get(level);
+			if (l != null) {
+				locked[l.stripe] = true;
+			}
+		}
+		try {
+			AddResult[] results = new AddResult[levelList.size()];
+			boolean isAccepted = false;
+			lockStripes(locked);
+			writing.incrementAndGet();
+			try {
+				for (int i = 0; i < results.length; ++i) {
+					Level l = levels.get(levelList.get(i));
+					results[i] = l == null ? AddResult.NO_LEVEL : addLocked(l, userList.get(i));
+					isAccepted |= results[i] == AddResult.ACCEPTED;
+				}
+				log.flush();
+			} finally {
+				writing.decrementAndGet();
+				unlockStripes(locked);
+			}
+			if (isAccepted) {
+				commit();
+			}
+			return results;
+		} finally {
+			writeLatency.record(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Lets the current thread return from adding likes before they are synced
+	 * by the group commit, e.g. an event loop which must not block. The thread
+	 * has to take its added likes via takeUncommitted and to answer them once
+	 * they were committed.
+	 */
+	public void deferCommits() {
+		uncommitted.set(new boolean[1]);
+	}
+
+	/**
+	 * Checks whether the current thread added likes which are not synced yet
+	 * since the last call, if it defers the commits.
+	 * 
+	 * @return Whether the added likes have to be committed
+	 */
+	public boolean takeUncommitted() {
+		boolean[] flag = uncommitted.get();
+		if (flag == null || !flag[0]) {
+			return false;
+		}
+		flag[0] = false;
+		return true;
+	}
+
+	/**
+	 * Calls back once the likes added so far are synced or their sync failed.
+	 * The callback runs on the thread syncing the likes, so it has to return
+	 * quickly.
+	 * 
+	 * @param callback
+	 *            Callback to run afterwards
+	 * @return Target of the commit regarding checkCommitted
+	 */
+	public long whenCommitted(Runnable callback) {
+		return log.whenSynced(callback);
+	}
+
+	/**
+	 * Checks whether the likes of a commit were synced after its callback ran.
+	 * 
+	 * @param target
+	 *            Target of the commit
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	public void checkCommitted(long target) throws IOException {
+		log.checkSynced(target);
+	}
+
+	/**
+	 * Waits until the accepted likes are synced with group commit unless the
+	 * current thread defers the commits.
+	 * 
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	private void commit() throws IOException {
+		boolean[] flag = uncommitted.get();
+		if (flag != null && log.isGroupCommit()) {
+			flag[0] = true;
+		} else {
+			log.commit();
+		}
+	}
+
+	/**
+	 * Adds a like while holding the stripe of the level without flushing the
+	 * log. The like is appended to the log before it is added to the user
+	 * names, so that a failed append neither shows the like nor answers a
+	 * retry as existing. Afterwards, publishes a new snapshot of the level.
+	 * 
+	 * @param level
+	 *            Level of the like
+	 * @param user
+	 *            Name of the user
+	 * @return Result of adding the like
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	private AddResult addLocked(Level level, String user) throws IOException {
+		if (level.users.contains(user)) {
+			return AddResult.EXISTS;
+		}
+		log.append(level.id, user);
+		level.users.add(user);
+		counters.increment(level.id);
+		leaderboard.increment(level.index);
+		index(user, level.index);
+		level.snapshot = new Snapshot(level.users.size(), version.incrementAndGet());
+		BiConsumer<String, String> listener = this.listener;
+		if (listener != null) {
+			listener.accept(level.id, user);
+		}
+		return AddResult.ACCEPTED;
+	}
+
+	/**
+	 * Adds a level to the levels which a user likes. Most users like only one
+	 * level, so they share the set of that level. Likes of the same user may
+	 * be added concurrently regarding different stripes, so the set is
+	 * replaced atomically.
+	 * 
+	 * @param user
+	 *            Name of the user
+	 * @param index
+	 *            Index of the level
+	 */
+	private void index(String user, int index) {
+		liked.merge(user, singles[index], (levelSet, single) -> levelSet.with(index));
+	}
+
+	/**
+	 * Gets a level by the number of its ID.
+	 * 
+	 * @param number
+	 *            Number of the level
+	 * @return Level or null if it does not exist
+	 */
+	private Level level(int number) {
+		Level[] numbered = this.numbered;
+		if (number < 0) {
+			return null;
+		}
+		return number < numbered.length ? numbered[number]
+				: number > MAX_NUMBER ? levels.get(LEVEL_PREFIX + number) : null;
+	}
+
+	/**
+	 * Indexes the levels whose ID consists of the prefix and a number without
+	 * leading zeros by this number.
+	 * 
+	 * @param loaded
+	 *            Levels per ID
+	 * @return Levels per number
+	 */
+	private static Level[] number(Map<String, Level> loaded) {
+		Level[] numbered = new Level[0];
+		for (Level level : loaded.values()) {
+			String digits = level.id.startsWith(LEVEL_PREFIX) ? level.id.substring(LEVEL_PREFIX.length()) : "";
+			if (digits.isEmpty() || digits.length() > 5 || !digits.chars().allMatch(c -> c >= '0' && c <= '9')
+					|| (digits.charAt(0) == '0' && digits.length() > 1)) {
+				continue;
+			}
+			int number = Integer.parseInt(digits);
+			if (number <= MAX_NUMBER) {
+				if (number >= numbered.length) {
+					numbered = Arrays.copyOf(numbered, number + 1);
+				}
+				numbered[number] = level;
+			}
+		}
+		return numbered;
+	}
+
+	/**
+	 * Reads several snapshots consistently. The read is repeated if a write
+	 * was in progress or has published a snapshot in the meantime. After too
+	 * many attempts, all stripes are locked instead.
+	 * 
+	 * @param reader
+	 *            Reader of the snapshots
+	 * @return Result of the reader
+	 */
+	private <T> T readConsistent(Supplier<T> reader) {
+		for (int attempt = 0; attempt < OPTIMISTIC_READS; ++attempt) {
+			long before = version.get();
+			if (writing.get() == 0) {
+				T result = reader.get();
+				if (writing.get() == 0 && version.get() == before) {
+					return result;
+				}
+			}
+			Thread.onSpinWait();
+		}
+		boolean[] all = new boolean[STRIPES];
+		Arrays.fill(all, true);
+		lockStripes(all);
+		try {
+			return reader.get();
+		} finally {
+			unlockStripes(all);
+		}
+	}
+
+	/**
+	 * Locks stripes in ascending order.
+	 * 
+	 * @param locked
+	 *            Stripes to lock
+	 */
+	private void lockStripes(boolean[] locked) {
+		for (int i = 0; i < STRIPES; ++i) {
+			if (locked[i]) {
+				stripes[i].lock();
+			}
+		}
+	}
+
+	/**
+	 * Unlocks stripes in descending order.
+	 * 
+	 * @param locked
+	 *            Stripes to unlock
+	 */
+	private void unlockStripes(boolean[] locked) {
+		for (int i = STRIPES - 1; i >= 0; --i) {
+			if (locked[i]) {
+				stripes[i].unlock();
+			}
+		}
+	}
+
+	/**
+	 * Closes the log after the writes in progress.
+	 * 
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	public void close() throws IOException {
+		boolean[] all = new boolean[STRIPES];
+		Arrays.fill(all, true);
+		lockStripes(all);
+		try {
+			log.close();
+			counters.close();
+		} finally {
+			unlockStripes(all);
+		}
+	}
+}
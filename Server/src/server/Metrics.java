@@ -0,0 +1,249 @@
+package server;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Represents the metrics of the server: requests and their latencies per
+ * command, open connections, accepted connections waiting to be served,
+ * rejected connections, requests over the rate limit and the latency of the
+ * store to add likes. The metrics are exported as MBean and answered by the
+ * command 'stats'.
+ * 
+ * @author Rune Krauss
+ * @author Steffen Gerken
+ * @author Niels Arbatschat
+ */
+public class Metrics implements MetricsMBean {
+
+	/** Index of invalid requests */
+	public static final int INVALID = Command.VERB_COUNT;
+
+	/** Names of the commands in the order of the verbs of a command */
+	private static final String[] COMMAND_NAMES = { "get", "add", "mget", "getall", "madd", "stats", "watch",
+			"merge", "top", "liked", "invalid" };
+
+	/** Number of requests per command */
+	private final LongAdder[] requests = new LongAdder[COMMAND_NAMES.length];
+
+	/** Latencies to answer a request */
+	private final LatencyHistogram latency = new LatencyHistogram();
+
+	/** Latencies of the store to add likes */
+	private final LatencyHistogram writeLatency;
+
+	/** Number of open connections */
+	private final AtomicInteger connections = new AtomicInteger();
+
+	/** Number of connections rejected because the server was busy */
+	private final LongAdder rejected = new LongAdder();
+
+	/** Number of requests which were not answered due to the rate limit */
+	private final LongAdder limited = new LongAdder();
+
+	/** Number of accepted connections waiting to be served */
+	private volatile IntSupplier queueDepth = () -> 0;
+
+	/** Name of the registered MBean or null */
+	private ObjectName name;
+
+	/**
+	 * Constructor of the metrics which initializes the attributes.
+	 * 
+	 * @param writeLatency
+	 *            Latencies of the store to add likes
+	 */
+	public Metrics(LatencyHistogram writeLatency) {
+		this.writeLatency = writeLatency;
+		for (int i = 0; i < requests.length; ++i) {
+			requests[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Records an answered request.
+	 * 
+	 * @param command
+	 *            Verb of the command or INVALID
+	 * @param nanos
+	 *            Time to answer the request in nanoseconds
+	 */
+	public void record(int command, long nanos) {
+		requests[command].increment();
+		latency.record(nanos);
+	}
+
+	/**
+	 * Records an opened connection.
+	 */
+	public void connectionOpened() {
+		connections.incrementAndGet();
+	}
+
+	/**
+	 * Records a closed connection.
+	 */
+	public void connectionClosed() {
+		connections.decrementAndGet();
+	}
+
+	/**
+	 * Records a connection which was rejected because the server was busy.
+	 */
+	public void connectionRejected() {
+		rejected.increment();
+	}
+
+	/**
+	 * Records a request which was not answered because its client exceeded
+	 * its rate limit.
+	 */
+	public void requestLimited() {
+		limited.increment();
+	}
+
+	/**
+	 * Sets the source of the number of accepted connections waiting to be
+	 * served.
+	 * 
+	 * @param queueDepth
+	 *            Source of the number of waiting connections
+	 */
+	public void setQueueDepth(IntSupplier queueDepth) {
+		this.queueDepth = queueDepth;
+	}
+
+	/**
+	 * Registers the metrics at the platform MBean server.
+	 * 
+	 * @param port
+	 *            Port of the server which distinguishes several servers
+	 */
+	public synchronized void register(int port) {
+		try {
+			ObjectName objectName = new ObjectName("server:type=Metrics,port=" + port);
+			MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+			if (!mBeanServer.isRegistered(objectName)) {
+				mBeanServer.registerMBean(this, objectName);
+				name = objectName;
+			}
+		} catch (JMException e) {
+			System.out.print(e.getMessage());
+		}
+	}
+
+	/**
+	 * Unregisters the metrics from the platform MBean server.
+	 */
+	public synchronized void unregister() {
+		if (name == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		} catch (JMException e) {
+			System.out.print(e.getMessage());
+		}
+		name = null;
+	}
+
+	/**
+	 * Formats the metrics as pairs of name and value separated by spaces, the
+	 * latencies in microseconds.
+	 * 
+	 * @return Line of the metrics
+	 */
+	public String format() {
+		StringBuilder msg = new StringBuilder("requests ").append(getRequests());
+		long[] counts = getRequestsPerCommand();
+		for (int i = 0; i < counts.length; ++i) {
+			msg.append(' ').append(COMMAND_NAMES[i]).append(' ').append(counts[i]);
+		}
+		msg.append(String.format(Locale.ROOT, " p50 %.1f p99 %.1f p999 %.1f", getLatencyP50(), getLatencyP99(),
+				getLatencyP999()));
+		msg.append(" connections ").append(getActiveConnections()).append(" queue ").append(getQueueDepth())
+				.append(" rejected ").append(getRejectedConnections()).append(" limited ").append(getLimitedRequests());
+		msg.append(String.format(Locale.ROOT, " write_p50 %.1f write_p99 %.1f write_p999 %.1f", getWriteLatencyP50(),
+				getWriteLatencyP99(), getWriteLatencyP999()));
+		return msg.append('\n').toString();
+	}
+
+	@Override
+	public long getRequests() {
+		long sum = 0;
+		for (LongAdder count : requests) {
+			sum += count.sum();
+		}
+		return sum;
+	}
+
+	@Override
+	public long[] getRequestsPerCommand() {
+		long[] counts = new long[requests.length];
+		for (int i = 0; i < counts.length; ++i) {
+			counts[i] = requests[i].sum();
+		}
+		return counts;
+	}
+
+	@Override
+	public String[] getCommandNames() {
+		return COMMAND_NAMES.clone();
+	}
+
+	@Override
+	public double getLatencyP50() {
+		return latency.percentile(50) / 1000.0;
+	}
+
+	@Override
+	public double getLatencyP99() {
+		return latency.percentile(99) / 1000.0;
+	}
+
+	@Override
+	public double getLatencyP999() {
+		return latency.percentile(99.9) / 1000.0;
+	}
+
+	@Override
+	public int getActiveConnections() {
+		return connections.get();
+	}
+
+	@Override
+	public int getQueueDepth() {
+		return queueDepth.getAsInt();
+	}
+
+	@Override
+	public long getRejectedConnections() {
+		return rejected.sum();
+	}
+
+	@Override
+	public long getLimitedRequests() {
+		return limited.sum();
+	}
+
+	@Override
+	public double getWriteLatencyP50() {
+		return writeLatency.percentile(50) / 1000.0;
+	}
+
+	@Override
+	public double getWriteLatencyP99() {
+		return writeLatency.percentile(99) / 1000.0;
+	}
+
+	@Override
+	public double getWriteLatencyP999() {
+		return writeLatency.percentile(99.9) / 1000.0;
+	}
+}
@@ -0,0 +1,103 @@
+package server;
+
+/**
+ * Represents the metrics of the server which are exported via JMX.
+ * 
+ * @author Rune Krauss
+ * @author Steffen Gerken
+ * @author Niels Arbatschat
+ */
+public interface MetricsMBean {
+
+	/**
+	 * Counts the answered requests of all commands.
+	 * 
+	 * @return Number of requests
+	 */
+	long getRequests();
+
+	/**
+	 * Counts the answered requests per command.
+	 * 
+	 * @return Number of requests in the order of the command names
+	 */
+	long[] getRequestsPerCommand();
+
+	/**
+	 * Gets the names of the commands.
+	 * 
+	 * @return Names of the commands
+	 */
+	String[] getCommandNames();
+
+	/**
+	 * Computes the median time to answer a request.
+	 * 
+	 * @return Latency in microseconds
+	 */
+	double getLatencyP50();
+
+	/**
+	 * Computes the 99th percentile of the time to answer a request.
+	 * 
+	 * @return Latency in microseconds
+	 */
+	double getLatencyP99();
+
+	/**
+	 * Computes the 99.9th percentile of the time to answer a request.
+	 * 
+	 * @return Latency in microseconds
+	 */
+	double getLatencyP999();
+
+	/**
+	 * Counts the open connections.
+	 * 
+	 * @return Number of connections
+	 */
+	int getActiveConnections();
+
+	/**
+	 * Counts the accepted connections waiting for a thread or an event loop.
+	 * 
+	 * @return Number of waiting connections
+	 */
+	int getQueueDepth();
+
+	/**
+	 * Counts the connections which were rejected because the server was busy.
+	 * 
+	 * @return Number of rejected connections
+	 */
+	long getRejectedConnections();
+
+	/**
+	 * Counts the requests which were not answered because their client
+	 * exceeded its rate limit.
+	 * 
+	 * @return Number of limited requests
+	 */
+	long getLimitedRequests();
+
+	/**
+	 * Computes the median time of the store to add likes.
+	 * 
+	 * @return Latency in microseconds
+	 */
+	double getWriteLatencyP50();
+
+	/**
+	 * Computes the 99th percentile of the time of the store to add likes.
+	 * 
+	 * @return Latency in microseconds
+	 */
+	double getWriteLatencyP99();
+
+	/**
+	 * Computes the 99.9th percentile of the time of the store to add likes.
+	 * 
+	 * @return Latency in microseconds
+	 */
+	double getWriteLatencyP999();
+}
@@ -0,0 +1,656 @@
+package server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Represents the text protocol of this game. Decodes a command and answers it
+ * with the likes of the store by means of a dispatch table of actions per
+ * verb. Fixed answers are encoded once, so answering 'get' and 'add' does not
+ * create any objects apart from the accepted user name.
+ * 
+ * @author Rune Krauss
+ * @author Steffen Gerken
+ * @author Niels Arbatschat
+ */
+public class Protocol {
+
+	/** Maximum length of a line in bytes regarding all modes */
+	public static final int MAX_LINE = 65536;
+
+	/** Answer regarding an existing user name */
+	private static final byte[] EXISTS = bytes("The user name already exists.\n");
+
+	/** Answer regarding an unknown level */
+	private static final byte[] NO_LEVEL = bytes("The level does not exist.\n");
+
+	/** Answer regarding an accepted user name */
+	private static final byte[] ACCEPTED = bytes("The user name was accepted.\n");
+
+	/** Answer regarding too many watched levels */
+	private static final byte[] TOO_MANY_LEVELS = bytes("Too many levels are watched.\n");
+
+	/** Answer regarding watching levels in a mode which does not offer it */
+	private static final byte[] NO_WATCH = bytes(
+			"Watching levels is not offered by this server, poll the likes instead.\n");
+
+	/** Prefix of the answers and pushes regarding watched levels */
+	private static final byte[] WATCH_PREFIX = bytes("watch");
+
+	/** Beginning of the answer regarding a command exceeding the rate limit */
+	private static final byte[] LIMITED = bytes("The rate limit was exceeded, retry after ");
+
+	/** End of the answer regarding a command exceeding the rate limit */
+	private static final byte[] LIMITED_SUFFIX = bytes(" ms.\n");
+
+	/** Answer regarding a line exceeding the maximum length */
+	private static final byte[] TOO_LONG = bytes("The line is longer than " + MAX_LINE + " bytes.\n");
+
+	/** Answer regarding 'merge' sent by a client which is no peer */
+	private static final byte[] NOT_PEER = bytes("Only peers may merge likes.\n");
+
+	/** Answer regarding an invalid command */
+	private static final byte[] INVALID = bytes("The regular expression did not match with the given commands.\n");
+
+	/**
+	 * Action answering a decoded command
+	 */
+	private interface Action {
+
+		/**
+		 * Answers a decoded command.
+		 * 
+		 * @param command
+		 *            Decoded command
+		 * @param watch
+		 *            Levels watched by the connection
+		 * @param output
+		 *            Stream to write the answer to
+		 * @throws IOException
+		 *             Signals that an I/O exception of some sort has occurred.
+		 */
+		void answer(Command command, Watch watch, OutputStream output) throws IOException;
+	}
+
+	/** Likes of all levels */
+	protected LikeStore store;
+
+	/** Metrics of the server */
+	protected Metrics metrics;
+
+	/** Routing of the levels to the nodes or null if this node owns all levels */
+	protected Router router;
+
+	/** Whether levels may be watched */
+	protected boolean isWatching = true;
+
+	/** Actions per verb */
+	private final Action[] actions = new Action[Command.VERB_COUNT];
+
+	/**
+	 * Constructor of the protocol which initializes the attributes.
+	 * 
+	 * @param store
+	 *            Likes of all levels
+	 * @param metrics
+	 *            Metrics of the server
+	 */
+	public Protocol(LikeStore store, Metrics metrics) {
+		this.store = store;
+		this.metrics = metrics;
+		actions[Command.GET] = this::get;
+		actions[Command.ADD] = this::add;
+		actions[Command.MGET] = this::mget;
+		actions[Command.GETALL] = this::getall;
+		actions[Command.MADD] = this::madd;
+		actions[Command.STATS] = this::stats;
+		actions[Command.WATCH] = this::watch;
+		actions[Command.MERGE] = this::merge;
+		actions[Command.TOP] = this::top;
+		actions[Command.LIKED] = this::liked;
+	}
+
+	/**
+	 * Sets the routing of the levels to the nodes of a cluster.
+	 * 
+	 * @param router
+	 *            Routing of the levels
+	 */
+	public void setRouter(Router router) {
+		this.router = router;
+	}
+
+	/**
+	 * Sets whether levels may be watched. Without it, 'watch' is answered that
+	 * the client has to poll, e.g. if each watching client would keep a thread
+	 * of a fixed pool.
+	 * 
+	 * @param isWatching
+	 *            Whether levels may be watched
+	 */
+	public void setWatching(boolean isWatching) {
+		this.isWatching = isWatching;
+	}
+
+	/**
+	 * Checks whether levels may be watched.
+	 * 
+	 * @return Result of the check
+	 */
+	public boolean isWatching() {
+		return isWatching;
+	}
+
+	/**
+	 * Decodes a line, writes the answer and records its latency.
+	 * 
+	 * @param command
+	 *            Command of the connection which is reused for each line
+	 * @param watch
+	 *            Levels watched by the connection
+	 * @param line
+	 *            Bytes containing the line
+	 * @param offset
+	 *            Start of the line
+	 * @param length
+	 *            Length of the line
+	 * @param output
+	 *            Stream to write the answer to
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	public void answer(Command command, Watch watch, byte[] line, int offset, int length, OutputStream output)
+			throws IOException {
+		long start = System.nanoTime();
+		if (command.decode(line, offset, length)) {
+			actions[command.getVerb()].answer(command, watch, output);
+			metrics.record(command.getVerb(), System.nanoTime() - start);
+		} else {
+			output.write(INVALID);
+			metrics.record(Metrics.INVALID, System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Checks whether a line has to be forwarded to another node, so that
+	 * answering it blocks until the owner answers. The line is decoded into
+	 * the given command for this.
+	 * 
+	 * @param command
+	 *            Command which is reused for the check
+	 * @param line
+	 *            Bytes containing the line
+	 * @param offset
+	 *            Start of the line
+	 * @param length
+	 *            Length of the line
+	 * @return Result of the check
+	 */
+	public boolean isForwarded(Command command, byte[] line, int offset, int length) {
+		if (router == null || !router.isForwarding() || !command.decode(line, offset, length)) {
+			return false;
+		}
+		switch (command.getVerb()) {
+		case Command.GET:
+		case Command.ADD:
+		case Command.MGET:
+		case Command.MADD:
+			for (int i = 0; i < command.getLevels(); ++i) {
+				if (isRemote(command, i)) {
+					return true;
+				}
+			}
+			return false;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Answers the likes of a level, also regarding 'add' without a user name.
+	 * 
+	 * @param command
+	 *            Decoded command
+	 * @param watch
+	 *            Levels watched by the connection
+	 * @param output
+	 *            Stream to write the answer to
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	private void get(Command command, Watch watch, OutputStream output) throws IOException {
+		if (isRemote(command, 0)) {
+			output.write(router.forward(command.getLevel(0), "get " + command.getLevel(0)));
+			return;
+		}
+		int number = command.getNumber(0);
+		writeCount(output, number != Command.NO_NUMBER ? store.count(number) : store.count(command.getLevel(0)));
+		output.write('\n');
+	}
+
+	/**
+	 * Adds a like and answers whether it was accepted.
+	 * 
+	 * @param command
+	 *            Decoded command
+	 * @param watch
+	 *            Levels watched by the connection
+	 * @param output
+	 *            Stream to write the answer to
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	private void add(Command command, Watch watch, OutputStream output) throws IOException {
+		if (!command.hasUser(0)) {
+			get(command, watch, output);
+			return;
+		}
+		if (isRemote(command, 0)) {
+			output.write(router.forward(command.getLevel(0), "add " + command.getLevel(0) + " " + command.getUser(0)));
+			return;
+		}
+		int number = command.getNumber(0);
+		String user = command.getUser(0);
+		switch (number != Command.NO_NUMBER ? store.add(number, user) : store.add(command.getLevel(0), user)) {
+		case EXISTS:
+			output.write(EXISTS);
+			break;
+		case NO_LEVEL:
+			output.write(NO_LEVEL);
+			break;
+		default:
+			output.write(ACCEPTED);
+		}
+	}
+
+	/**
+	 * Answers the likes of several levels against one consistent state of the
+	 * store separated by spaces. Levels of other nodes are counted by their
+	 * owners, so the state is only consistent per node. If an owner does not
+	 * answer a count, its answer, e.g. that it is not reachable, is answered
+	 * instead of the counts.
+	 * 
+	 * @param command
+	 *            Decoded command
+	 * @param watch
+	 *            Levels watched by the connection
+	 * @param output
+	 *            Stream to write the answer to
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	private void mget(Command command, Watch watch, OutputStream output) throws IOException {
+		List<String> levelList = new ArrayList<>(command.getLevels());
+		for (int i = 0; i < command.getLevels(); ++i) {
+			levelList.add(command.getLevel(i));
+		}
+		int[] counts = store.count(levelList);
+		for (int i = 0; router != null && i < counts.length; ++i) {
+			if (isRemote(command, i)) {
+				byte[] answer = router.forward(levelList.get(i), "get " + levelList.get(i));
+				counts[i] = Router.parseCount(answer);
+				if (counts[i] < 0) {
+					output.write(answer);
+					return;
+				}
+			}
+		}
+		for (int i = 0; i < counts.length; ++i) {
+			if (i > 0) {
+				output.write(' ');
+			}
+			writeCount(output, counts[i]);
+		}
+		output.write('\n');
+	}
+
+	/**
+	 * Answers pairs of level and likes regarding all levels of this node.
+	 * 
+	 * @param command
+	 *            Decoded command
+	 * @param watch
+	 *            Levels watched by the connection
+	 * @param output
+	 *            Stream to write the answer to
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	private void getall(Command command, Watch watch, OutputStream output) throws IOException {
+		boolean isFirst = true;
+		for (Map.Entry<String, Integer> level : store.countAll().entrySet()) {
+			if (router != null && !router.isLocal(level.getKey())) {
+				continue;
+			}
+			if (!isFirst) {
+				output.write(' ');
+			}
+			output.write(level.getKey().getBytes(StandardCharsets.UTF_8));
+			output.write(' ');
+			writeCount(output, level.getValue());
+			isFirst = false;
+		}
+		output.write('\n');
+	}
+
+	/**
+	 * Answers pairs of level and likes regarding the levels of this node with
+	 * the most likes in descending order.
+	 * 
+	 * @param command
+	 *            Decoded command
+	 * @param watch
+	 *            Levels watched by the connection
+	 * @param output
+	 *            Stream to write the answer to
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	private void top(Command command, Watch watch, OutputStream output) throws IOException {
+		boolean isFirst = true;
+		for (Map.Entry<String, Integer> level : store.top(command.getLimit(), router == null ? null : router::isLocal)
+				.entrySet()) {
+			if (!isFirst) {
+				output.write(' ');
+			}
+			output.write(level.getKey().getBytes(StandardCharsets.UTF_8));
+			output.write(' ');
+			writeCount(output, level.getValue());
+			isFirst = false;
+		}
+		output.write('\n');
+	}
+
+	/**
+	 * Answers the levels of this node which a user likes separated by spaces
+	 * in the order of the XML file.
+	 * 
+	 * @param command
+	 *            Decoded command
+	 * @param watch
+	 *            Levels watched by the connection
+	 * @param output
+	 *            Stream to write the answer to
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	private void liked(Command command, Watch watch, OutputStream output) throws IOException {
+		List<String> levels = store.liked(command.getUser(0), router == null ? null : router::isLocal);
+		output.write(String.join(" ", levels).getBytes(StandardCharsets.UTF_8));
+		output.write('\n');
+	}
+
+	/**
+	 * Adds several likes at once and answers 'accepted', 'exists' or
+	 * 'unknown' per record. Likes of other nodes are added by their owners
+	 * and answered 'failed' if an owner does not answer.
+	 * 
+	 * @param command
+	 *            Decoded command
+	 * @param watch
+	 *            Levels watched by the connection
+	 * @param output
+	 *            Stream to write the answer to
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	private void madd(Command command, Watch watch, OutputStream output) throws IOException {
+		List<String> levels = new ArrayList<>(command.getLevels());
+		List<String> users = new ArrayList<>(command.getLevels());
+		LikeStore.AddResult[] results = new LikeStore.AddResult[command.getLevels()];
+		boolean[] isRemote = new boolean[results.length];
+		for (int i = 0; i < command.getLevels(); ++i) {
+			isRemote[i] = isRemote(command, i);
+			if (isRemote[i]) {
+				results[i] = router.add(command.getLevel(i), command.getUser(i));
+			} else {
+				levels.add(command.getLevel(i));
+				users.add(command.getUser(i));
+			}
+		}
+		LikeStore.AddResult[] localResults = store.add(levels, users);
+		for (int i = 0, local = 0; i < results.length; ++i) {
+			if (!isRemote[i]) {
+				results[i] = localResults[local++];
+			}
+		}
+		StringBuilder msg = new StringBuilder();
+		for (LikeStore.AddResult result : results) {
+			msg.append(msg.length() == 0 ? "" : " ").append(result == LikeStore.AddResult.ACCEPTED ? "accepted"
+					: result == LikeStore.AddResult.EXISTS ? "exists" : result == null ? "failed" : "unknown");
+		}
+		output.write(msg.append('\n').toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Merges a like which another node has accepted, regardless of the owner
+	 * of the level, and answers like 'add'.
+	 * 
+	 * @param command
+	 *            Decoded command
+	 * @param watch
+	 *            Levels watched by the connection
+	 * @param output
+	 *            Stream to write the answer to
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	private void merge(Command command, Watch watch, OutputStream output) throws IOException {
+		switch (store.merge(command.getLevel(0), command.getUser(0))) {
+		case EXISTS:
+			output.write(EXISTS);
+			break;
+		case NO_LEVEL:
+			output.write(NO_LEVEL);
+			break;
+		default:
+			output.write(ACCEPTED);
+		}
+	}
+
+	/**
+	 * Answers the metrics of the server.
+	 * 
+	 * @param command
+	 *            Decoded command
+	 * @param watch
+	 *            Levels watched by the connection
+	 * @param output
+	 *            Stream to write the answer to
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	private void stats(Command command, Watch watch, OutputStream output) throws IOException {
+		output.write(metrics.format().getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Watches levels and answers their likes as 'watch level1 3 level2 0'.
+	 * Afterwards, changed likes are pushed in the same form. Levels of other
+	 * nodes have to be watched at their owners. If watching is not offered,
+	 * the client is answered to poll instead.
+	 * 
+	 * @param command
+	 *            Decoded command
+	 * @param watch
+	 *            Levels watched by the connection
+	 * @param output
+	 *            Stream to write the answer to
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	private void watch(Command command, Watch watch, OutputStream output) throws IOException {
+		if (!isWatching) {
+			output.write(NO_WATCH);
+			return;
+		}
+		String[] levels = new String[command.getLevels()];
+		int[] counts = new int[levels.length];
+		for (int i = 0; i < levels.length; ++i) {
+			if (isRemote(command, i)) {
+				output.write(router.redirect(command.getLevel(i)));
+				return;
+			}
+		}
+		for (int i = 0; i < levels.length; ++i) {
+			levels[i] = command.getLevel(i);
+			int number = command.getNumber(i);
+			counts[i] = number != Command.NO_NUMBER ? store.count(number) : store.count(levels[i]);
+			if (!watch.add(levels[i], number, counts[i])) {
+				output.write(TOO_MANY_LEVELS);
+				return;
+			}
+		}
+		output.write(WATCH_PREFIX);
+		for (int i = 0; i < levels.length; ++i) {
+			writePair(output, levels[i], counts[i]);
+		}
+		output.write('\n');
+	}
+
+	/**
+	 * Answers that a line exceeds the maximum length instead of answering it
+	 * and records this. The client stays connected.
+	 * 
+	 * @param output
+	 *            Stream to write the answer to
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	public void tooLong(OutputStream output) throws IOException {
+		output.write(TOO_LONG);
+		metrics.record(Metrics.INVALID, 0);
+	}
+
+	/**
+	 * Answers that only peers may merge likes instead of merging a like sent
+	 * by another client and records this.
+	 * 
+	 * @param output
+	 *            Stream to write the answer to
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	public void notPeer(OutputStream output) throws IOException {
+		output.write(NOT_PEER);
+		metrics.record(Metrics.INVALID, 0);
+	}
+
+	/**
+	 * Answers that a command exceeds the rate limit of the client instead of
+	 * answering it and records this.
+	 * 
+	 * @param retryAfter
+	 *            Time in milliseconds after which the client should retry
+	 * @param output
+	 *            Stream to write the answer to
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	public void limited(long retryAfter, OutputStream output) throws IOException {
+		metrics.requestLimited();
+		output.write(LIMITED);
+		writeCount(output, (int) Math.min(retryAfter, Integer.MAX_VALUE));
+		output.write(LIMITED_SUFFIX);
+	}
+
+	/**
+	 * Pushes the likes of the watched levels which changed since they were
+	 * pushed last as one line.
+	 * 
+	 * @param watch
+	 *            Levels watched by the connection
+	 * @param output
+	 *            Stream to write the push to
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	public void push(Watch watch, OutputStream output) throws IOException {
+		boolean isChanged = false;
+		for (int i = 0; i < watch.size(); ++i) {
+			int number = watch.getNumber(i);
+			int count = number != Command.NO_NUMBER ? store.count(number) : store.count(watch.getLevel(i));
+			if (watch.update(i, count)) {
+				if (!isChanged) {
+					output.write(WATCH_PREFIX);
+					isChanged = true;
+				}
+				writePair(output, watch.getLevel(i), count);
+			}
+		}
+		if (isChanged) {
+			output.write('\n');
+		}
+	}
+
+	/**
+	 * Checks whether a level of a command belongs to another node.
+	 * 
+	 * @param command
+	 *            Decoded command
+	 * @param i
+	 *            Index of the level
+	 * @return Result of the check
+	 */
+	private boolean isRemote(Command command, int i) {
+		if (router == null) {
+			return false;
+		}
+		int number = command.getNumber(i);
+		return !(number != Command.NO_NUMBER ? router.isLocal(number) : router.isLocal(command.getLevel(i)));
+	}
+
+	/**
+	 * Writes a space, a level ID, a space and its count.
+	 * 
+	 * @param output
+	 *            Stream to write to
+	 * @param level
+	 *            ID of the level
+	 * @param count
+	 *            Count of the level
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	private static void writePair(OutputStream output, String level, int count) throws IOException {
+		output.write(' ');
+		output.write(level.getBytes(StandardCharsets.UTF_8));
+		output.write(' ');
+		writeCount(output, count);
+	}
+
+	/**
+	 * Writes a non-negative count as decimal digits without creating a string.
+	 * 
+	 * @param output
+	 *            Stream to write to
+	 * @param count
+	 *            Count to write
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	private static void writeCount(OutputStream output, int count) throws IOException {
+		int divisor = 1;
+		while (count / divisor >= 10) {
+			divisor *= 10;
+		}
+		for (; divisor > 0; divisor /= 10) {
+			output.write('0' + count / divisor % 10);
+		}
+	}
+
+	/**
+	 * Encodes a fixed answer.
+	 * 
+	 * @param msg
+	 *            Answer to encode
+	 * @return Bytes of the answer
+	 */
+	private static byte[] bytes(String msg) {
+		return msg.getBytes(StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,201 @@
+package server;
+
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Represents the rate limiting of the clients per remote address. Each client
+ * has a token bucket per command, whose budget is given as rate per second and
+ * burst, e.g. 'add=20:40,get=1000'. Commands without a budget are not limited.
+ * A bucket is kept as the time at which it is full again, so that taking a
+ * token is a single compare-and-set without locks. Since a full bucket equals a
+ * new one, full buckets are removed once the number of clients reaches the
+ * maximum. If no bucket can be removed, new clients share one bucket, so that
+ * the memory stays bounded even if many addresses are used.
+ * 
+ * @author Rune Krauss
+ * @author Steffen Gerken
+ * @author Niels Arbatschat
+ */
+public class RateLimiter {
+
+	/** Minimum time in nanoseconds between two removals of full buckets */
+	private static final long SWEEP_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+	/** Time in nanoseconds per token per command or zero if it is not limited */
+	private final long[] intervals = new long[Metrics.INVALID + 1];
+
+	/** Time in nanoseconds by which a bucket holds the burst per command */
+	private final long[] capacities = new long[Metrics.INVALID + 1];
+
+	/** Buckets per remote address */
+	private final ConcurrentHashMap<InetAddress, Bucket> buckets = new ConcurrentHashMap<>();
+
+	/** Maximum number of remote addresses with their own buckets */
+	private final int maxClients;
+
+	/** Bucket shared by the clients which do not fit into the map */
+	private final Bucket overflow = new Bucket(intervals.length);
+
+	/** Time in nanoseconds after which full buckets may be removed again */
+	private final AtomicLong nextSweep = new AtomicLong(System.nanoTime());
+
+	/**
+	 * Token buckets of a client
+	 */
+	private static final class Bucket {
+
+		/** Time in nanoseconds at which the bucket is full again per command */
+		private final AtomicLongArray fullAt;
+
+		/**
+		 * Constructor of the bucket which initializes the attributes.
+		 * 
+		 * @param commands
+		 *            Number of commands
+		 */
+		private Bucket(int commands) {
+			fullAt = new AtomicLongArray(commands);
+			for (int i = 0; i < commands; ++i) {
+				fullAt.set(i, Long.MIN_VALUE);
+			}
+		}
+
+		/**
+		 * Checks whether all buckets of the client are full.
+		 * 
+		 * @param now
+		 *            Current time in nanoseconds
+		 * @return Whether the client has no used tokens
+		 */
+		private boolean isFull(long now) {
+			for (int i = 0; i < fullAt.length(); ++i) {
+				long time = fullAt.get(i);
+				if (time != Long.MIN_VALUE && time - now > 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Constructor of the rate limiting which initializes the attributes.
+	 * 
+	 * @param budgets
+	 *            Budgets like 'add=20:40,get=1000' as command, rate per
+	 *            second and optionally the burst, which is the rate by default
+	 * @param maxClients
+	 *            Maximum number of remote addresses with their own buckets
+	 */
+	public RateLimiter(String budgets, int maxClients) {
+		if (maxClients < 1) {
+			throw new IllegalArgumentException("The number of limited clients must be positive.");
+		}
+		this.maxClients = maxClients;
+		for (String budget : budgets.split(",")) {
+			String[] parts = budget.trim().split("[=:]");
+			int command = parts.length >= 2 && parts.length <= 3 ? command(parts[0]) : -1;
+			if (command < 0 || !parts[1].matches("\\d{1,9}")
+					|| parts.length == 3 && !parts[2].matches("\\d{1,9}")) {
+				throw new IllegalArgumentException(
+						"The budget '" + budget + "' does not match command=rate or command=rate:burst.");
+			}
+			long rate = Long.parseLong(parts[1]);
+			long burst = parts.length == 3 ? Long.parseLong(parts[2]) : rate;
+			if (rate < 1 || burst < 1) {
+				throw new IllegalArgumentException("The rate and burst of '" + budget + "' must be positive.");
+			}
+			intervals[command] = Math.max(1, TimeUnit.SECONDS.toNanos(1) / rate);
+			capacities[command] = intervals[command] * burst;
+		}
+	}
+
+	/**
+	 * Looks up the index of a command by its name.
+	 * 
+	 * @param name
+	 *            Name of the command like 'add' or 'invalid'
+	 * @return Index of the command or -1 if it does not exist
+	 */
+	private static int command(String name) {
+		if (name.equalsIgnoreCase("invalid")) {
+			return Metrics.INVALID;
+		}
+		byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+		return bytes.length == 0 ? -1 : Command.peekVerb(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Takes a token regarding a command of a client.
+	 * 
+	 * @param address
+	 *            Remote address of the client
+	 * @param verb
+	 *            Verb of the command or -1 if it is unknown
+	 * @return Zero if the command may be answered, otherwise the time in
+	 *         milliseconds after which the client should retry
+	 */
+	public long acquire(InetAddress address, int verb) {
+		int command = verb < 0 ? Metrics.INVALID : verb;
+		long interval = intervals[command];
+		if (interval == 0) {
+			return 0;
+		}
+		AtomicLongArray fullAt = bucket(address).fullAt;
+		long now = System.nanoTime();
+		while (true) {
+			long time = fullAt.get(command);
+			long next = (time == Long.MIN_VALUE || time - now < 0 ? now : time) + interval;
+			long wait = next - now - capacities[command];
+			if (wait > 0) {
+				return TimeUnit.NANOSECONDS.toMillis(wait + TimeUnit.MILLISECONDS.toNanos(1) - 1);
+			}
+			if (fullAt.compareAndSet(command, time, next)) {
+				return 0;
+			}
+		}
+	}
+
+	/**
+	 * Gets the buckets of a client. A new client gets its own buckets as long
+	 * as the maximum number of clients is not reached after removing the full
+	 * buckets. A client whose address is unknown shares the overflow bucket.
+	 * 
+	 * @param address
+	 *            Remote address of the client
+	 * @return Buckets of the client
+	 */
+	private Bucket bucket(InetAddress address) {
+		if (address == null) {
+			return overflow;
+		}
+		Bucket bucket = buckets.get(address);
+		if (bucket != null) {
+			return bucket;
+		}
+		if (buckets.size() >= maxClients) {
+			sweep();
+			if (buckets.size() >= maxClients) {
+				return overflow;
+			}
+		}
+		return buckets.computeIfAbsent(address, a -> new Bucket(intervals.length));
+	}
+
+	/**
+	 * Removes the full buckets unless this was done within the sweep interval.
+	 */
+	private void sweep() {
+		long now = System.nanoTime();
+		long next = nextSweep.get();
+		if (now - next < 0 || !nextSweep.compareAndSet(next, now + SWEEP_INTERVAL)) {
+			return;
+		}
+		buckets.values().removeIf(bucket -> bucket.isFull(now));
+	}
+}
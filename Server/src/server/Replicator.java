@@ -0,0 +1,397 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Represents the replication of the likes between nodes which all accept likes.
+ * The likes of a level form a grow-only set, so merging a like of another node
+ * is idempotent and the order of merges does not matter. Thus, every node adds
+ * likes locally without waiting for the others and all nodes converge. The
+ * likes accepted from clients are queued as deltas per peer and sent in the
+ * background as pipelined 'merge' commands. A like which a peer answers with
+ * anything but accepted or existing, e.g. because the peer does not list this
+ * node, is sent again after a delay. A merged like which is new to a node is replicated
+ * again to its own peers, so the nodes converge as long as the peers connect
+ * all of them, and a known like ends the replication. In a full mesh, this
+ * costs up to one extra 'merge' per like and pair of nodes, which is answered
+ * as existing. Only the configured peers may send 'merge' and they are not
+ * rate limited.
+ * <p>
+ * A peer which could not be reached gets the full state once it is reachable
+ * again, since its deltas are dropped in the meantime. Every node also sends
+ * the full state to each peer after it was started. Thus, each restart and
+ * each lost connection costs one 'merge' per like of all levels, which is
+ * answered as existing if nothing was missed.
+ * 
+ * @author Rune Krauss
+ * @author Steffen Gerken
+ * @author Niels Arbatschat
+ */
+public class Replicator implements Runnable {
+
+	/** Maximum number of likes sent before reading their answers */
+	private static final int BATCH_SIZE = 256;
+
+	/** Time in milliseconds to connect to or to wait for a peer */
+	private static final int TIMEOUT = 5000;
+
+	/** Time in milliseconds after which rejected likes are sent again */
+	private static final long RETRY_DELAY = 1000;
+
+	/**
+	 * Node receiving the likes of this node
+	 */
+	private static final class Peer {
+
+		/** Node like 'localhost:55555' */
+		private final String node;
+
+		/** Likes which were accepted and not sent yet */
+		private final Queue<String[]> deltas = new ConcurrentLinkedQueue<>();
+
+		/** Likes which were sent without an answer and are sent again */
+		private final List<String[]> unanswered = new ArrayList<>();
+
+		/** Likes which the peer did not accept and which are sent again */
+		private final List<String[]> rejected = new ArrayList<>();
+
+		/** Time in milliseconds after which the rejected likes are sent again */
+		private long retryAt;
+
+		/** Whether the peer needs the full state since deltas were dropped */
+		private volatile boolean needsFullState = true;
+
+		/** Connection to the peer or null */
+		private Socket socket;
+
+		/** Input of the connection */
+		private InputStream input;
+
+		/** Output of the connection */
+		private OutputStream output;
+
+		/**
+		 * Constructor of the peer which initializes the attributes.
+		 * 
+		 * @param node
+		 *            Node like 'localhost:55555'
+		 */
+		private Peer(String node) {
+			this.node = node;
+		}
+	}
+
+	/** Likes of all levels */
+	protected LikeStore store;
+
+	/** Time in milliseconds between two rounds of sending deltas */
+	protected long interval;
+
+	/** Nodes receiving the likes of this node */
+	private final List<Peer> peers = new ArrayList<>();
+
+	/** Addresses of the peers, which may merge likes without rate limit */
+	private final Set<InetAddress> peerAddresses = ConcurrentHashMap.newKeySet();
+
+	/** Status of the replication */
+	private volatile boolean isStopped;
+
+	/** Thread of the replication */
+	private Thread thread;
+
+	/**
+	 * Constructor of the replication which initializes the attributes.
+	 * 
+	 * @param store
+	 *            Likes of all levels
+	 * @param peers
+	 *            All other nodes like 'localhost:55556'
+	 * @param interval
+	 *            Time in milliseconds between two rounds of sending deltas
+	 */
+	public Replicator(LikeStore store, List<String> peers, long interval) {
+		for (String node : peers) {
+			int colon = node.lastIndexOf(':');
+			if (colon <= 0 || !node.substring(colon + 1).matches("\\d{1,5}")) {
+				throw new IllegalArgumentException("The peer '" + node + "' does not match host:port.");
+			}
+			this.peers.add(new Peer(node));
+		}
+		if (interval < 1) {
+			throw new IllegalArgumentException("The replication interval must be positive.");
+		}
+		this.store = store;
+		this.interval = interval;
+	}
+
+	/**
+	 * Starts replicating the likes accepted from now on after the store was
+	 * loaded.
+	 */
+	public void start() {
+		for (Peer peer : peers) {
+			String host = peer.node.substring(0, peer.node.lastIndexOf(':'));
+			try {
+				peerAddresses.addAll(Arrays.asList(InetAddress.getAllByName(host)));
+			} catch (UnknownHostException e) {
+				System.out.print(e.getMessage());
+			}
+		}
+		store.setListener(this::accepted);
+		thread = new Thread(this, "replicator");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Checks whether a client is one of the peers, which may merge likes and
+	 * are not rate limited. Peers are known by their addresses.
+	 * 
+	 * @param address
+	 *            Remote address of the client
+	 * @return Result of the check
+	 */
+	public boolean isPeer(InetAddress address) {
+		return address != null && peerAddresses.contains(address);
+	}
+
+	/**
+	 * Queues an accepted or newly merged like as delta of each reachable peer.
+	 * 
+	 * @param level
+	 *            ID of the level
+	 * @param user
+	 *            Name of the user
+	 */
+	private void accepted(String level, String user) {
+		String[] like = { level, user };
+		for (Peer peer : peers) {
+			if (!peer.needsFullState) {
+				peer.deltas.add(like);
+			}
+		}
+	}
+
+	/**
+	 * Sends the deltas to the peers in rounds.
+	 */
+	@Override
+	public void run() {
+		while (!isStopped) {
+			for (Peer peer : peers) {
+				replicate(peer);
+			}
+			try {
+				Thread.sleep(interval);
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+		for (Peer peer : peers) {
+			disconnect(peer);
+		}
+	}
+
+	/**
+	 * Sends the deltas or the full state to a peer. A connection which the
+	 * peer has closed in the meantime, e.g. because it was idle, is opened
+	 * again once. If the peer cannot be reached, its deltas are dropped and it
+	 * gets the full state later.
+	 * 
+	 * @param peer
+	 *            Node receiving the likes
+	 */
+	private void replicate(Peer peer) {
+		for (int attempt = 0; attempt < 2; ++attempt) {
+			try {
+				if (peer.socket == null) {
+					connect(peer);
+				}
+			} catch (IOException e) {
+				peer.needsFullState = true;
+				peer.deltas.clear();
+				peer.unanswered.clear();
+				peer.rejected.clear();
+				return;
+			}
+			try {
+				send(peer);
+				return;
+			} catch (IOException e) {
+				disconnect(peer);
+			}
+		}
+	}
+
+	/**
+	 * Sends the unanswered likes, the rejected likes once their delay passed,
+	 * the full state if necessary and the deltas in batches of pipelined
+	 * 'merge' commands.
+	 * 
+	 * @param peer
+	 *            Node receiving the likes
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	private void send(Peer peer) throws IOException {
+		List<String[]> rejected = new ArrayList<>();
+		if (System.currentTimeMillis() >= peer.retryAt) {
+			rejected.addAll(peer.rejected);
+			peer.rejected.clear();
+		}
+		for (String[] like : rejected) {
+			peer.unanswered.add(like);
+			if (peer.unanswered.size() == BATCH_SIZE) {
+				flush(peer);
+			}
+		}
+		flush(peer);
+		if (peer.needsFullState) {
+			peer.needsFullState = false;
+			int likes = 0;
+			try {
+				for (String level : store.countAll().keySet()) {
+					for (String user : store.users(level)) {
+						peer.unanswered.add(new String[] { level, user });
+						if (peer.unanswered.size() == BATCH_SIZE) {
+							flush(peer);
+						}
+						++likes;
+					}
+				}
+				flush(peer);
+			} catch (IOException e) {
+				peer.needsFullState = true;
+				throw e;
+			}
+			System.out.println("Likes were sent to " + peer.node + ": " + likes + " likes...");
+		}
+		for (String[] like; (like = peer.deltas.poll()) != null;) {
+			peer.unanswered.add(like);
+			if (peer.unanswered.size() == BATCH_SIZE) {
+				flush(peer);
+			}
+		}
+		flush(peer);
+	}
+
+	/**
+	 * Sends the unanswered likes and reads one answer line per like. The
+	 * likes are kept until all answers were read, so that they are sent again
+	 * over a new connection if this one fails. A like which was neither
+	 * accepted nor known by the peer is kept and sent again after a delay.
+	 * 
+	 * @param peer
+	 *            Node receiving the likes
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	private void flush(Peer peer) throws IOException {
+		if (peer.unanswered.isEmpty()) {
+			return;
+		}
+		for (String[] like : peer.unanswered) {
+			peer.output.write(("merge " + like[0] + " " + like[1] + "\n").getBytes(StandardCharsets.UTF_8));
+		}
+		peer.output.flush();
+		List<String[]> rejected = new ArrayList<>();
+		StringBuilder answer = new StringBuilder();
+		for (String[] like : peer.unanswered) {
+			answer.setLength(0);
+			int b;
+			while ((b = peer.input.read()) != '\n') {
+				if (b < 0) {
+					throw new IOException("The peer " + peer.node + " has closed the connection.");
+				}
+				answer.append((char) b);
+			}
+			if (!isDelivered(answer)) {
+				rejected.add(like);
+			}
+		}
+		peer.unanswered.clear();
+		if (!rejected.isEmpty()) {
+			peer.rejected.addAll(rejected);
+			peer.retryAt = System.currentTimeMillis() + RETRY_DELAY;
+		}
+	}
+
+	/**
+	 * Checks whether an answer to 'merge' shows that the peer has the like.
+	 * 
+	 * @param answer
+	 *            Answer without line break
+	 * @return Result of the check
+	 */
+	private static boolean isDelivered(CharSequence answer) {
+		String text = answer.toString();
+		return text.equals("The user name was accepted.") || text.equals("The user name already exists.");
+	}
+
+	/**
+	 * Connects to a peer.
+	 * 
+	 * @param peer
+	 *            Node receiving the likes
+	 * @throws IOException
+	 *             Signals that an I/O exception of some sort has occurred.
+	 */
+	private void connect(Peer peer) throws IOException {
+		int colon = peer.node.lastIndexOf(':');
+		Socket socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress(peer.node.substring(0, colon),
+					Integer.parseInt(peer.node.substring(colon + 1))), TIMEOUT);
+			socket.setSoTimeout(TIMEOUT);
+			peer.input = new BufferedInputStream(socket.getInputStream());
+			peer.output = new BufferedOutputStream(socket.getOutputStream());
+			peer.socket = socket;
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Closes the connection to a peer.
+	 * 
+	 * @param peer
+	 *            Node receiving the likes
+	 */
+	private void disconnect(Peer peer) {
+		if (peer.socket != null) {
+			try {
+				peer.socket.close();
+			} catch (IOException e) {
+				System.out.print(e.getMessage());
+			}
+			peer.socket = null;
+		}
+	}
+
+	/**
+	 * Stops the replication after the current round.
+	 */
+	public void stop() {
+		isStopped = true;
+		if (thread != null) {
+			thread.interrupt();
+		}
+	}
+}
@@ -0,0 +1,336 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Represents the routing of levels to the nodes of a cluster. Each node owns
+ * the levels which the consistent-hash ring assigns to it. A command regarding
+ * a level of another node is either forwarded to that node via the text
+ * protocol or answered with its owner, so that the client can ask the owner
+ * itself. Connections to the other nodes are kept in a pool per node and
+ * reused.
+ * 
+ * @author Rune Krauss
+ * @author Steffen Gerken
+ * @author Niels Arbatschat
+ */
+public class Router {
+
+	/** Prefix of the level IDs */
+	private static final String LEVEL_PREFIX = "level";
+
+	/** Maximum level number whose ownership is computed in advance */
+	private static final int MAX_NUMBER = 65535;
+
+	/** Time in milliseconds to connect to or to wait for another node */
+	private static final int TIMEOUT = 2000;
+
+	/** Ring assigning the levels to the nodes */
+	protected HashRing ring;
+
+	/** Node of this server */
+	protected String self;
+
+	/** Whether commands are forwarded or only answered with the owner */
+	protected boolean isForwarding;
+
+	/** Ownership of the levels 'level0' to 'level65535' */
+	private final boolean[] isLocalNumber = new boolean[MAX_NUMBER + 1];
+
+	/** Idle connections per node */
+	private final Map<String, Queue<Connection>> pools = new ConcurrentHashMap<>();
+
+	/**
+	 * Connection to another node
+	 */
+	private static final class Connection {
+
+		/** Socket of the connection */
+		private final Socket socket;
+
+		/** Input of the connection */
+		private final InputStream input;
+
+		/** Output of the connection */
+		private final OutputStream output;
+
+		/**
+		 * Constructor of the connection which connects to a node.
+		 * 
+		 * @param node
+		 *            Node like 'localhost:55555'
+		 * @throws IOException
+		 *             Signals that an I/O exception of some sort has occurred.
+		 */
+		private Connection(String node) throws IOException {
+			int colon = node.lastIndexOf(':');
+			socket = new Socket();
+			try {
+				socket.connect(new InetSocketAddress(node.substring(0, colon),
+						Integer.parseInt(node.substring(colon + 1))), TIMEOUT);
+				socket.setSoTimeout(TIMEOUT);
+				socket.setTcpNoDelay(true);
+				input = new BufferedInputStream(socket.getInputStream());
+				output = socket.getOutputStream();
+			} catch (IOException e) {
+				socket.close();
+				throw e;
+			}
+		}
+
+		/**
+		 * Sends a command and reads its answer line. If the command could not
+		 * be written or the node closed the connection before any byte of the
+		 * answer, e.g. since the connection was idle, the node has not answered
+		 * the command and it may be sent again. Otherwise, e.g. after a
+		 * timeout, the node may have applied the command.
+		 * 
+		 * @param line
+		 *            Command including its line break
+		 * @return Answer including its line break or null if the connection
+		 *         was closed before the command was answered
+		 * @throws IOException
+		 *             Signals that an I/O exception of some sort has occurred.
+		 */
+		private byte[] send(byte[] line) throws IOException {
+			int b;
+			try {
+				output.write(line);
+				output.flush();
+				b = input.read();
+			} catch (SocketTimeoutException e) {
+				throw e;
+			} catch (IOException e) {
+				return null;
+			}
+			if (b < 0) {
+				return null;
+			}
+			ByteArrayOutputStream answer = new ByteArrayOutputStream();
+			for (; b != '\n'; b = input.read()) {
+				if (b < 0) {
+					throw new IOException("The node has closed the connection.");
+				}
+				answer.write(b);
+			}
+			answer.write('\n');
+			return answer.toByteArray();
+		}
+	}
+
+	/**
+	 * Constructor of the router which computes the ownership of the numbered
+	 * levels.
+	 * 
+	 * @param nodes
+	 *            All nodes of the cluster in the same order on every node
+	 * @param self
+	 *            Node of this server
+	 * @param isForwarding
+	 *            Whether commands are forwarded or only answered with the owner
+	 */
+	public Router(List<String> nodes, String self, boolean isForwarding) {
+		if (!nodes.contains(self)) {
+			throw new IllegalArgumentException("The node " + self + " is not part of the nodes " + nodes + ".");
+		}
+		for (String node : nodes) {
+			int colon = node.lastIndexOf(':');
+			if (colon <= 0 || !node.substring(colon + 1).matches("\\d{1,5}")) {
+				throw new IllegalArgumentException("The node '" + node + "' does not match host:port.");
+			}
+		}
+		this.ring = new HashRing(nodes);
+		this.self = self;
+		this.isForwarding = isForwarding;
+		for (int number = 0; number <= MAX_NUMBER; ++number) {
+			isLocalNumber[number] = ring.owner(LEVEL_PREFIX + number).equals(self);
+		}
+	}
+
+	/**
+	 * Checks whether a level belongs to this node.
+	 * 
+	 * @param level
+	 *            ID of the level
+	 * @return Result of the check
+	 */
+	public boolean isLocal(String level) {
+		return ring.owner(level).equals(self);
+	}
+
+	/**
+	 * Checks whether a numbered level like 'level1' belongs to this node.
+	 * Numbers beyond the precomputed ones, including negative ones, are
+	 * looked up on the ring.
+	 * 
+	 * @param number
+	 *            Number of the level
+	 * @return Result of the check
+	 */
+	public boolean isLocal(int number) {
+		return number >= 0 && number <= MAX_NUMBER ? isLocalNumber[number] : isLocal(LEVEL_PREFIX + number);
+	}
+
+	/**
+	 * Checks whether commands regarding levels of other nodes are forwarded,
+	 * which blocks until the owner answers, or only redirected.
+	 * 
+	 * @return Result of the check
+	 */
+	public boolean isForwarding() {
+		return isForwarding;
+	}
+
+	/**
+	 * Gets the node owning a level.
+	 * 
+	 * @param level
+	 *            ID of the level
+	 * @return Node like 'localhost:55555'
+	 */
+	public String owner(String level) {
+		return ring.owner(level);
+	}
+
+	/**
+	 * Answers a text command regarding a level of another node. The command is
+	 * forwarded to the owner unless forwarding is disabled. A pooled connection
+	 * which was closed before the command was answered is replaced once.
+	 * Otherwise, a failed command is not sent again, since the owner may have
+	 * applied it already, and the owner is answered as not reachable.
+	 * 
+	 * @param level
+	 *            ID of the level
+	 * @param command
+	 *            Command without line break
+	 * @return Answer of the owner including its line break
+	 */
+	public byte[] forward(String level, String command) {
+		String owner = ring.owner(level);
+		if (!isForwarding) {
+			return redirect(level);
+		}
+		byte[] line = (command + "\n").getBytes(StandardCharsets.UTF_8);
+		Queue<Connection> pool = pools.computeIfAbsent(owner, node -> new ConcurrentLinkedQueue<>());
+		Connection connection = pool.poll();
+		try {
+			byte[] answer = connection == null ? null : connection.send(line);
+			if (answer == null) {
+				if (connection != null) {
+					close(connection);
+				}
+				connection = null;
+				connection = new Connection(owner);
+				answer = connection.send(line);
+			}
+			if (answer != null) {
+				pool.offer(connection);
+				return answer;
+			}
+		} catch (IOException e) {
+			// The owner did not answer in time
+		}
+		if (connection != null) {
+			close(connection);
+		}
+		return ("The node " + owner + " is not reachable.\n").getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Answers the owner of a level, so that the client can ask the owner
+	 * itself.
+	 * 
+	 * @param level
+	 *            ID of the level
+	 * @return Answer including its line break
+	 */
+	public byte[] redirect(String level) {
+		return ("The level is owned by " + ring.owner(level) + ".\n").getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Counts the likes of a level of another node.
+	 * 
+	 * @param level
+	 *            ID of the level
+	 * @return Number of likes or -1 if the owner did not answer a count
+	 */
+	public int count(String level) {
+		return parseCount(forward(level, "get " + level));
+	}
+
+	/**
+	 * Parses the answer of the owner regarding 'get'.
+	 * 
+	 * @param answer
+	 *            Answer including its line break
+	 * @return Number of likes or -1 if the answer is no count, e.g. since the
+	 *         owner is not reachable
+	 */
+	public static int parseCount(byte[] answer) {
+		String count = new String(answer, StandardCharsets.UTF_8).trim();
+		return count.matches("\\d{1,9}") ? Integer.parseInt(count) : -1;
+	}
+
+	/**
+	 * Adds a like to a level of another node.
+	 * 
+	 * @param level
+	 *            ID of the level
+	 * @param user
+	 *            Name of the user
+	 * @return Result of the owner or null if the owner did not answer a result
+	 */
+	public LikeStore.AddResult add(String level, String user) {
+		String answer = new String(forward(level, "add " + level + " " + user), StandardCharsets.UTF_8);
+		switch (answer) {
+		case "The user name was accepted.\n":
+			return LikeStore.AddResult.ACCEPTED;
+		case "The user name already exists.\n":
+			return LikeStore.AddResult.EXISTS;
+		case "The level does not exist.\n":
+			return LikeStore.AddResult.NO_LEVEL;
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Closes the idle connections to the other nodes.
+	 */
+	public void close() {
+		for (Queue<Connection> pool : pools.values()) {
+			for (Connection connection; (connection = pool.poll()) != null;) {
+				close(connection);
+			}
+		}
+	}
+
+	/**
+	 * Closes a connection to another node, e.g. after the node has closed it
+	 * because it was idle.
+	 * 
+	 * @param connection
+	 *            Connection to close
+	 */
+	private static void close(Connection connection) {
+		try {
+			connection.socket.close();
+		} catch (IOException e) {
+			System.out.print(e.getMessage());
+		}
+	}
+}
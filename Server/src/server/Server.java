@@ -1,10 +1,20 @@
 package server;
 
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.ServerSocket;
 import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Represents the server of this game.
@@ -15,6 +25,34 @@ import java.util.concurrent.Executors;
  */
 public class Server implements Runnable {
 
+	/**
+	 * Modes to serve clients
+	 */
+	public enum Mode {
+		/** One thread of a fixed pool per client */
+		POOL,
+		/** Event loops serving many clients with non-blocking I/O */
+		NIO,
+		/** One virtual thread per client */
+		VIRTUAL
+	}
+
+	/**
+	 * Policies to admit clients if the queue of the pool is full
+	 */
+	public enum Admission {
+		/** The new client is answered that the server is busy */
+		REJECT_NEW,
+		/** The longest waiting client is answered that the server is busy */
+		REJECT_OLDEST
+	}
+
+	/** Number of threads regarding the mode POOL */
+	private static final int POOL_SIZE = 50;
+
+	/** Maximum length of the queue of incoming connections */
+	private static final int BACKLOG = 1024;
+
 	/** Port of the server */
 	protected int port = 55555;
 
@@ -27,26 +65,323 @@ public class Server implements Runnable {
 	/** Thread of the server */
 	protected Thread thread;
 
-	/** Allowed threads at same time */
-	protected ExecutorService threadPool = Executors.newFixedThreadPool(50);
+	/** Protocol to answer commands */
+	protected Protocol protocol;
+
+	/** Protocol to answer binary frames */
+	protected BinaryProtocol binaryProtocol;
+
+	/** Metrics of the server */
+	protected Metrics metrics;
+
+	/** Likes of all levels */
+	protected LikeStore store;
+
+	/** Port of the HTTP interface or zero if it is not offered */
+	protected int httpPort;
+
+	/** HTTP interface sharing the store */
+	protected HttpApi httpApi;
+
+	/** Routing of the levels to the nodes or null if this node owns all levels */
+	protected Router router;
+
+	/** Replication of the likes to other nodes or null */
+	protected Replicator replicator;
+
+	/** Rate limiting of the clients or null if they are not limited */
+	protected RateLimiter rateLimiter;
+
+	/** Executor regarding the handlers of the clients */
+	protected ExecutorService threadPool;
+
+	/** Mode to serve clients */
+	protected Mode mode = Mode.POOL;
+
+	/** Number of event loops regarding the mode NIO */
+	protected int eventLoops = Runtime.getRuntime().availableProcessors();
+
+	/** Time in milliseconds after which an idle client is closed */
+	protected long idleTimeout = 30000;
+
+	/** Number of accepted clients which may wait for a thread of the pool */
+	protected int queueCapacity = 1000;
+
+	/** Policy to admit clients if the queue of the pool is full */
+	protected Admission admission = Admission.REJECT_NEW;
+
+	/** Time in milliseconds after which a rejected client should retry */
+	protected long retryAfter = 500;
+
+	/** Time in milliseconds between two pushes regarding watched levels */
+	protected long pushInterval = 250;
+
+	/** Time in milliseconds to finish the commands of the clients when draining */
+	protected long drainTimeout = 10000;
+
+	/** Time in milliseconds until which the clients are drained or zero */
+	private long drainDeadline;
+
+	/** Handlers of the pool which are not finished yet */
+	private final Set<Handler> handlers = ConcurrentHashMap.newKeySet();
 
 	/**
 	 * Constructor of the server which initializes the attributes.
 	 * 
 	 * @param port
 	 *            Port of the server
+	 * @param store
+	 *            Likes of all levels
 	 */
-	public Server(int port) {
+	public Server(int port, LikeStore store) {
 		this.port = port;
+		this.store = store;
+		this.metrics = new Metrics(store.getWriteLatency());
+		this.protocol = new Protocol(store, metrics);
+		this.binaryProtocol = new BinaryProtocol(store, metrics);
+	}
+
+	/**
+	 * Sets the port of the server.
+	 * 
+	 * @param port
+	 *            Port of the server
+	 */
+	public void setPort(int port) {
+		if (port < 1 || port > 65535) {
+			throw new IllegalArgumentException("The port must be between 1 and 65535.");
+		}
+		this.port = port;
+	}
+
+	/**
+	 * Gets the port of the server.
+	 * 
+	 * @return Port of the server
+	 */
+	public int getPort() {
+		return port;
+	}
+
+	/**
+	 * Sets the routing of the levels to the nodes of a cluster, so that this
+	 * server only owns a part of the levels.
+	 * 
+	 * @param router
+	 *            Routing of the levels
+	 */
+	public void setRouter(Router router) {
+		this.router = router;
+		protocol.setRouter(router);
+		binaryProtocol.setRouter(router);
+	}
+
+	/**
+	 * Sets the replication of the likes to other nodes which is started with
+	 * the server.
+	 * 
+	 * @param replicator
+	 *            Replication of the likes
+	 */
+	public void setReplicator(Replicator replicator) {
+		this.replicator = replicator;
+	}
+
+	/**
+	 * Sets the rate limiting of the clients per remote address.
+	 * 
+	 * @param rateLimiter
+	 *            Rate limiting of the clients
+	 */
+	public void setRateLimiter(RateLimiter rateLimiter) {
+		this.rateLimiter = rateLimiter;
+	}
+
+	/**
+	 * Sets the mode to serve clients.
+	 * 
+	 * @param mode
+	 *            Mode to serve clients
+	 */
+	public void setMode(Mode mode) {
+		if (mode == Mode.VIRTUAL && !supportsVirtualThreads()) {
+			throw new IllegalArgumentException("The mode VIRTUAL needs Java 21 or newer.");
+		}
+		this.mode = mode;
+	}
+
+	/**
+	 * Sets the number of event loops regarding the mode NIO.
+	 * 
+	 * @param eventLoops
+	 *            Number of event loops
+	 */
+	public void setEventLoops(int eventLoops) {
+		if (eventLoops < 1) {
+			throw new IllegalArgumentException("There must be at least one event loop.");
+		}
+		this.eventLoops = eventLoops;
+	}
+
+	/**
+	 * Sets the time after which an idle client is closed.
+	 * 
+	 * @param idleTimeout
+	 *            Time in milliseconds
+	 */
+	public void setIdleTimeout(long idleTimeout) {
+		if (idleTimeout < 1) {
+			throw new IllegalArgumentException("The idle timeout must be positive.");
+		}
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * Sets the number of accepted clients which may wait for a thread of the
+	 * pool regarding the mode POOL.
+	 * 
+	 * @param queueCapacity
+	 *            Number of waiting clients
+	 */
+	public void setQueueCapacity(int queueCapacity) {
+		if (queueCapacity < 1) {
+			throw new IllegalArgumentException("The queue capacity must be positive.");
+		}
+		this.queueCapacity = queueCapacity;
+	}
+
+	/**
+	 * Sets the policy to admit clients if the queue of the pool is full.
+	 * 
+	 * @param admission
+	 *            Policy to admit clients
+	 */
+	public void setAdmission(Admission admission) {
+		this.admission = admission;
+	}
+
+	/**
+	 * Sets the time after which a rejected client should retry.
+	 * 
+	 * @param retryAfter
+	 *            Time in milliseconds
+	 */
+	public void setRetryAfter(long retryAfter) {
+		if (retryAfter < 0) {
+			throw new IllegalArgumentException("The retry time must not be negative.");
+		}
+		this.retryAfter = retryAfter;
+	}
+
+	/**
+	 * Sets the time between two pushes regarding watched levels, so that a
+	 * burst of likes results in at most one push per interval.
+	 * 
+	 * @param pushInterval
+	 *            Time in milliseconds
+	 */
+	public void setPushInterval(long pushInterval) {
+		if (pushInterval < 1) {
+			throw new IllegalArgumentException("The push interval must be positive.");
+		}
+		this.pushInterval = pushInterval;
+	}
+
+	/**
+	 * Sets the port of the HTTP interface which is started with the server.
+	 * 
+	 * @param httpPort
+	 *            Port of the HTTP interface or zero to offer none
+	 */
+	public void setHttpPort(int httpPort) {
+		if (httpPort < 0 || httpPort > 65535) {
+			throw new IllegalArgumentException("The HTTP port must be between 0 and 65535.");
+		}
+		this.httpPort = httpPort;
+	}
+
+	/**
+	 * Sets the time to finish the commands of the clients when draining.
+	 * 
+	 * @param drainTimeout
+	 *            Time in milliseconds
+	 */
+	public void setDrainTimeout(long drainTimeout) {
+		if (drainTimeout < 0) {
+			throw new IllegalArgumentException("The drain timeout must not be negative.");
+		}
+		this.drainTimeout = drainTimeout;
+	}
+
+	/**
+	 * Gets the metrics of the server.
+	 * 
+	 * @return Metrics of the server
+	 */
+	public Metrics getMetrics() {
+		return metrics;
 	}
 
 	/**
 	 * Here, Program code is executed in parallel. Creates a new thread to
-	 * communicate with a client. Furthermore, protects critical sections.
+	 * communicate with a client. Furthermore, protects critical sections. The
+	 * metrics are registered as MBean, the HTTP interface is offered and the
+	 * likes are replicated while the server runs. Levels are not watched in
+	 * the mode POOL, since each watching client would keep a thread of the
+	 * pool until it disconnects.
 	 */
 	public void run() {
 		synchronized (this) {
 			thread = Thread.currentThread();
+			protocol.setWatching(mode != Mode.POOL);
+			binaryProtocol.setWatching(mode != Mode.POOL);
+			if (httpPort > 0) {
+				httpApi = new HttpApi(httpPort, store, metrics);
+				httpApi.setRouter(router);
+				httpApi.setRateLimiter(rateLimiter);
+				try {
+					httpApi.start();
+				} catch (IOException e) {
+					throw new RuntimeException("The HTTP port " + httpPort + " could not be opened.", e);
+				}
+			}
+			if (replicator != null) {
+				replicator.start();
+			}
+		}
+		metrics.register(port);
+		try {
+			if (mode == Mode.NIO) {
+				runEventLoops();
+			} else {
+				runThreadPool();
+			}
+		} finally {
+			metrics.unregister();
+			synchronized (this) {
+				if (router != null) {
+					router.close();
+				}
+				if (replicator != null) {
+					replicator.stop();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Accepts clients and hands each of them to a thread of the pool or a
+	 * virtual thread. Clients which do not fit into the bounded queue of the
+	 * pool are answered that the server is busy by means of the admission
+	 * policy.
+	 */
+	private void runThreadPool() {
+		threadPool = mode == Mode.VIRTUAL ? newVirtualThreadPerTaskExecutor()
+				: new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, 0L, TimeUnit.MILLISECONDS,
+						new ArrayBlockingQueue<>(queueCapacity), this::reject);
+		if (threadPool instanceof ThreadPoolExecutor) {
+			BlockingQueue<Runnable> queue = ((ThreadPoolExecutor) threadPool).getQueue();
+			metrics.setQueueDepth(queue::size);
 		}
 		openServerSocket();
 		while (!isStopped()) {
@@ -60,9 +395,161 @@ public class Server implements Runnable {
 				}
 				throw new RuntimeException("An error was occured while accepting client connection.", ioe);
 			}
-			threadPool.execute(new Handler(clientSocket));
+			try {
+				clientSocket.setSoTimeout((int) Math.min(idleTimeout, Integer.MAX_VALUE));
+			} catch (IOException ioe) {
+				System.out.print(ioe.getMessage());
+			}
+			Handler handler = new Handler(clientSocket, protocol, binaryProtocol, metrics, pushInterval);
+			handler.setActive(handlers);
+			handler.setRateLimiter(rateLimiter);
+			handler.setReplicator(replicator);
+			try {
+				threadPool.execute(handler);
+			} catch (RejectedExecutionException e) {
+				handler.reject(retryAfter);
+				metrics.connectionRejected();
+			}
 		}
 		threadPool.shutdown();
+		if (getDrainDeadline() > 0) {
+			drainThreadPool();
+		}
+	}
+
+	/**
+	 * Lets the handlers answer the commands which were already read until the
+	 * drain deadline. Afterwards, the remaining clients are closed.
+	 */
+	private void drainThreadPool() {
+		for (Handler handler : handlers) {
+			handler.drain();
+		}
+		try {
+			long timeout = Math.max(0, getDrainDeadline() - System.currentTimeMillis());
+			if (!threadPool.awaitTermination(timeout, TimeUnit.MILLISECONDS)) {
+				System.out.println("Clients were closed after the drain timeout: " + handlers.size() + " clients...");
+				for (Handler handler : handlers) {
+					handler.close();
+				}
+				threadPool.shutdownNow();
+			}
+		} catch (InterruptedException e) {
+			threadPool.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Rejects a client because the queue of the pool is full. Depending on
+	 * the admission policy, the new client or the longest waiting client is
+	 * answered that the server is busy.
+	 * 
+	 * @param handler
+	 *            Handler of the new client
+	 * @param executor
+	 *            Pool whose queue is full
+	 */
+	private void reject(Runnable handler, ThreadPoolExecutor executor) {
+		if (admission == Admission.REJECT_OLDEST && !executor.isShutdown()) {
+			Runnable oldest = executor.getQueue().poll();
+			if (oldest != null) {
+				((Handler) oldest).reject(retryAfter);
+				metrics.connectionRejected();
+				executor.execute(handler);
+				return;
+			}
+		}
+		((Handler) handler).reject(retryAfter);
+		metrics.connectionRejected();
+	}
+
+	/**
+	 * Accepts clients and distributes them round robin to the event loops.
+	 * Commands forwarded to other nodes are answered by a pool, so that the
+	 * event loops do not wait for the other nodes.
+	 */
+	private void runEventLoops() {
+		ServerSocketChannel serverChannel = openServerChannel();
+		EventLoop[] loops = new EventLoop[eventLoops];
+		Thread[] loopThreads = new Thread[eventLoops];
+		ExecutorService forwarder = router != null && router.isForwarding() ? Executors.newFixedThreadPool(POOL_SIZE)
+				: null;
+		try {
+			for (int i = 0; i < loops.length; ++i) {
+				loops[i] = new EventLoop(protocol, binaryProtocol, metrics, store, idleTimeout, pushInterval);
+				loops[i].setRateLimiter(rateLimiter);
+				loops[i].setReplicator(replicator);
+				loops[i].setForwarder(forwarder);
+				loopThreads[i] = new Thread(loops[i], "event-loop-" + i);
+				loopThreads[i].start();
+			}
+		} catch (IOException ioe) {
+			throw new RuntimeException("An error was occured while opening an event loop.", ioe);
+		}
+		metrics.setQueueDepth(() -> {
+			int pending = 0;
+			for (EventLoop loop : loops) {
+				pending += loop.getPending();
+			}
+			return pending;
+		});
+		int next = 0;
+		while (!isStopped()) {
+			SocketChannel clientChannel;
+			try {
+				clientChannel = serverChannel.accept();
+			} catch (IOException ioe) {
+				if (isStopped()) {
+					System.out.println("Server was stopped...");
+					break;
+				}
+				throw new RuntimeException("An error was occured while accepting client connection.", ioe);
+			}
+			loops[next].register(clientChannel);
+			next = (next + 1) % loops.length;
+		}
+		if (getDrainDeadline() > 0) {
+			drainEventLoops(loops, loopThreads);
+		}
+		for (EventLoop loop : loops) {
+			if (loop != null) {
+				loop.stop();
+			}
+		}
+		if (forwarder != null) {
+			forwarder.shutdown();
+		}
+	}
+
+	/**
+	 * Lets the event loops answer the commands which were already read and
+	 * write the pending answers until the drain deadline. Afterwards, the
+	 * remaining clients are closed by stopping the event loops.
+	 * 
+	 * @param loops
+	 *            Event loops
+	 * @param loopThreads
+	 *            Threads of the event loops
+	 */
+	private void drainEventLoops(EventLoop[] loops, Thread[] loopThreads) {
+		for (EventLoop loop : loops) {
+			loop.drain();
+		}
+		try {
+			for (Thread loopThread : loopThreads) {
+				long timeout = getDrainDeadline() - System.currentTimeMillis();
+				if (timeout > 0) {
+					loopThread.join(timeout);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		int open = metrics.getActiveConnections();
+		if (open > 0) {
+			System.out.println("Clients were closed after the drain timeout: " + open + " clients...");
+		}
 	}
 
 	/**
@@ -74,26 +561,114 @@ public class Server implements Runnable {
 		return isStopped;
 	}
 
+	/**
+	 * Gets the time until which the clients are drained.
+	 * 
+	 * @return Time in milliseconds or zero if the server is not drained
+	 */
+	private synchronized long getDrainDeadline() {
+		return drainDeadline;
+	}
+
 	/**
 	 * Opens a server socket.
 	 */
 	private void openServerSocket() {
 		try {
-			serverSocket = new ServerSocket(port);
+			serverSocket = new ServerSocket(port, BACKLOG);
+		} catch (IOException e) {
+			throw new RuntimeException("The port " + port + " could not be opened.", e);
+		}
+	}
+
+	/**
+	 * Opens a server socket channel. Its socket is kept as server socket so
+	 * that stopping closes the channel as well.
+	 * 
+	 * @return Server socket channel in blocking mode
+	 */
+	private ServerSocketChannel openServerChannel() {
+		try {
+			ServerSocketChannel serverChannel = ServerSocketChannel.open();
+			serverChannel.bind(new InetSocketAddress(port), BACKLOG);
+			synchronized (this) {
+				serverSocket = serverChannel.socket();
+			}
+			return serverChannel;
 		} catch (IOException e) {
 			throw new RuntimeException("The port " + port + " could not be opened.", e);
 		}
 	}
 
 	/**
-	 * Stops the server.
+	 * Checks whether the running Java version offers virtual threads.
+	 * 
+	 * @return Availability of virtual threads
+	 */
+	public static boolean supportsVirtualThreads() {
+		try {
+			Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return true;
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Creates an executor which starts a new virtual thread for each task. It
+	 * is looked up reflectively so that the server still runs on Java versions
+	 * without virtual threads.
+	 * 
+	 * @return Executor regarding virtual threads
+	 */
+	private static ExecutorService newVirtualThreadPerTaskExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			throw new RuntimeException("Virtual threads could not be created.", e);
+		}
+	}
+
+	/**
+	 * Stops the server. The routing and the replication are closed as soon as
+	 * the server thread ends.
 	 */
 	public synchronized void stop() {
 		isStopped = true;
+		if (httpApi != null) {
+			httpApi.stop();
+		}
 		try {
-			serverSocket.close();
+			if (serverSocket != null) {
+				serverSocket.close();
+			}
 		} catch (IOException ioe) {
 			throw new RuntimeException("An error was occured while closing server.", ioe);
 		}
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Drains the server. No further clients are accepted, the commands which
+	 * were already read are answered within the drain timeout and remaining
+	 * clients are closed afterwards. Returns as soon as the server thread has
+	 * ended, so that the store can be closed without losing likes.
+	 */
+	public void drain() {
+		Thread serverThread;
+		synchronized (this) {
+			drainDeadline = System.currentTimeMillis() + Math.max(1, drainTimeout);
+			serverThread = thread;
+		}
+		long start = System.currentTimeMillis();
+		stop();
+		if (serverThread != null) {
+			try {
+				serverThread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+		System.out.println("Server was drained: " + (System.currentTimeMillis() - start) + " ms...");
+	}
+}
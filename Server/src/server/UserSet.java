@@ -0,0 +1,310 @@
+package server;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Represents the names of the users who like a level. The names are kept in
+ * the order of their likes and indexed by a hash table with open addressing
+ * and linear probing, so that checking a name costs a few probes of an int
+ * array regardless of the number of names. Optionally, a Bloom filter in front
+ * of the table answers most unknown names without probing it. Names cannot be
+ * removed since a like is never withdrawn. The set is not thread-safe.
+ * 
+ * @author Rune Krauss
+ * @author Steffen Gerken
+ * @author Niels Arbatschat
+ */
+public class UserSet extends AbstractSet<String> {
+
+	/** Minimum capacity of the names */
+	private static final int MIN_CAPACITY = 8;
+
+	/** Bits of the Bloom filter per name */
+	private static final int BITS_PER_NAME = 10;
+
+	/** Number of hash functions of the Bloom filter */
+	private static final int HASHES = 4;
+
+	/** Names in the order of their likes */
+	private String[] names;
+
+	/** Hashes of the names */
+	private int[] hashes;
+
+	/** Hash table with the index of a name plus one or zero if a slot is free */
+	private int[] table;
+
+	/** Bits of the Bloom filter or null if it is not used */
+	private long[] bloom;
+
+	/** Number of names */
+	private int size;
+
+	/**
+	 * Constructor of the set which initializes the attributes.
+	 */
+	public UserSet() {
+		this(MIN_CAPACITY);
+	}
+
+	/**
+	 * Constructor of the set which initializes the attributes.
+	 * 
+	 * @param capacity
+	 *            Expected number of names
+	 */
+	public UserSet(int capacity) {
+		capacity = Math.max(MIN_CAPACITY, capacity);
+		names = new String[capacity];
+		hashes = new int[capacity];
+		table = new int[tableSize(capacity)];
+	}
+
+	/**
+	 * Constructor of the set which copies the given names.
+	 * 
+	 * @param users
+	 *            Names of the users
+	 */
+	public UserSet(Collection<String> users) {
+		this(users.size());
+		addAll(users);
+	}
+
+	/**
+	 * Uses a Bloom filter in front of the hash table from now on.
+	 */
+	public void useBloomFilter() {
+		if (bloom == null) {
+			buildBloomFilter(names.length);
+		}
+	}
+
+	/**
+	 * Checks whether a user likes the level.
+	 * 
+	 * @param o
+	 *            Name of the user
+	 * @return Existence of the name
+	 */
+	@Override
+	public boolean contains(Object o) {
+		if (!(o instanceof String)) {
+			return false;
+		}
+		int hash = hash((String) o);
+		return (bloom == null || mightContain(hash)) && find((String) o, hash) >= 0;
+	}
+
+	/**
+	 * Adds the name of a user if it does not exist yet.
+	 * 
+	 * @param user
+	 *            Name of the user
+	 * @return Whether the name was added
+	 */
+	@Override
+	public boolean add(String user) {
+		int hash = hash(user);
+		if (bloom != null && !mightContain(hash)) {
+			insert(user, hash, free(hash));
+			return true;
+		}
+		int slot = find(user, hash);
+		if (slot >= 0) {
+			return false;
+		}
+		insert(user, hash, -slot - 1);
+		return true;
+	}
+
+	/**
+	 * Gets the number of names.
+	 * 
+	 * @return Number of names
+	 */
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Iterates the names in the order of their likes.
+	 * 
+	 * @return Iterator of the names
+	 */
+	@Override
+	public Iterator<String> iterator() {
+		return new Iterator<String>() {
+
+			/** Index of the next name */
+			private int next;
+
+			@Override
+			public boolean hasNext() {
+				return next < size;
+			}
+
+			@Override
+			public String next() {
+				if (next >= size) {
+					throw new NoSuchElementException();
+				}
+				return names[next++];
+			}
+		};
+	}
+
+	/**
+	 * Searches the slot of a name.
+	 * 
+	 * @param user
+	 *            Name of the user
+	 * @param hash
+	 *            Hash of the name
+	 * @return Slot of the name or -(free slot + 1) if it does not exist
+	 */
+	private int find(String user, int hash) {
+		int mask = table.length - 1;
+		for (int slot = hash & mask;; slot = (slot + 1) & mask) {
+			int entry = table[slot];
+			if (entry == 0) {
+				return -slot - 1;
+			}
+			if (hashes[entry - 1] == hash && names[entry - 1].equals(user)) {
+				return slot;
+			}
+		}
+	}
+
+	/**
+	 * Searches a free slot for a name which does not exist.
+	 * 
+	 * @param hash
+	 *            Hash of the name
+	 * @return Free slot
+	 */
+	private int free(int hash) {
+		int mask = table.length - 1;
+		int slot = hash & mask;
+		while (table[slot] != 0) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	/**
+	 * Inserts a new name into a free slot and grows the set if necessary.
+	 * 
+	 * @param user
+	 *            Name of the user
+	 * @param hash
+	 *            Hash of the name
+	 * @param slot
+	 *            Free slot
+	 */
+	private void insert(String user, int hash, int slot) {
+		if (size == names.length) {
+			grow();
+			slot = free(hash);
+		}
+		names[size] = user;
+		hashes[size] = hash;
+		table[slot] = ++size;
+		if (bloom != null) {
+			setBits(hash);
+		}
+	}
+
+	/**
+	 * Doubles the capacity and rebuilds the hash table and the Bloom filter.
+	 */
+	private void grow() {
+		int capacity = names.length * 2;
+		names = Arrays.copyOf(names, capacity);
+		hashes = Arrays.copyOf(hashes, capacity);
+		table = new int[tableSize(capacity)];
+		for (int i = 0; i < size; ++i) {
+			table[free(hashes[i])] = i + 1;
+		}
+		if (bloom != null) {
+			buildBloomFilter(capacity);
+		}
+	}
+
+	/**
+	 * Builds the Bloom filter regarding the given number of names.
+	 * 
+	 * @param capacity
+	 *            Number of names
+	 */
+	private void buildBloomFilter(int capacity) {
+		bloom = new long[Math.max(1, capacity * BITS_PER_NAME / 64)];
+		for (int i = 0; i < size; ++i) {
+			setBits(hashes[i]);
+		}
+	}
+
+	/**
+	 * Sets the bits of a hash in the Bloom filter.
+	 * 
+	 * @param hash
+	 *            Hash of the name
+	 */
+	private void setBits(int hash) {
+		int bits = bloom.length * 64;
+		int h = hash;
+		int step = Integer.rotateLeft(hash, 16) | 1;
+		for (int i = 0; i < HASHES; ++i, h += step) {
+			int bit = Math.floorMod(h, bits);
+			bloom[bit >>> 6] |= 1L << bit;
+		}
+	}
+
+	/**
+	 * Checks whether all bits of a hash are set in the Bloom filter.
+	 * 
+	 * @param hash
+	 *            Hash of the name
+	 * @return False if the name definitely does not exist
+	 */
+	private boolean mightContain(int hash) {
+		int bits = bloom.length * 64;
+		int h = hash;
+		int step = Integer.rotateLeft(hash, 16) | 1;
+		for (int i = 0; i < HASHES; ++i, h += step) {
+			int bit = Math.floorMod(h, bits);
+			if ((bloom[bit >>> 6] & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Spreads the hash code of a name, since the slots depend on its low bits.
+	 * 
+	 * @param user
+	 *            Name of the user
+	 * @return Hash of the name
+	 */
+	private static int hash(String user) {
+		int h = user.hashCode() * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * Computes the size of the hash table which is at most half full.
+	 * 
+	 * @param capacity
+	 *            Capacity of the names
+	 * @return Power of two
+	 */
+	private static int tableSize(int capacity) {
+		return Integer.highestOneBit(capacity * 2 - 1) * 2;
+	}
+}
@@ -0,0 +1,144 @@
+package server;
+
+import java.util.Arrays;
+
+/**
+ * Represents the levels watched by a connection together with the counts
+ * which were pushed last. The connection checks its watch once per push
+ * interval and pushes only the counts which changed since, so that a burst of
+ * likes results in at most one update per interval. Reading a count is
+ * lock-free, so checking many watches does not slow down the writes.
+ * 
+ * @author Rune Krauss
+ * @author Steffen Gerken
+ * @author Niels Arbatschat
+ */
+public class Watch {
+
+	/** Maximum number of watched levels per connection */
+	public static final int MAX_LEVELS = 64;
+
+	/** IDs of the watched levels */
+	private String[] levels = new String[4];
+
+	/** Numbers of the watched levels or Command.NO_NUMBER */
+	private int[] numbers = new int[4];
+
+	/** Counts which were pushed last */
+	private int[] counts = new int[4];
+
+	/** Number of watched levels */
+	private int size;
+
+	/** Time of the last check in milliseconds */
+	private long lastPush;
+
+	/**
+	 * Watches a level if it is not watched yet.
+	 * 
+	 * @param level
+	 *            ID of the level
+	 * @param number
+	 *            Number of the level or Command.NO_NUMBER
+	 * @param count
+	 *            Count which is answered now
+	 * @return Whether the level is watched or false if too many levels are
+	 *         watched
+	 */
+	public boolean add(String level, int number, int count) {
+		for (int i = 0; i < size; ++i) {
+			if (levels[i].equals(level)) {
+				counts[i] = count;
+				return true;
+			}
+		}
+		if (size == MAX_LEVELS) {
+			return false;
+		}
+		if (size == levels.length) {
+			levels = Arrays.copyOf(levels, size * 2);
+			numbers = Arrays.copyOf(numbers, size * 2);
+			counts = Arrays.copyOf(counts, size * 2);
+		}
+		levels[size] = level;
+		numbers[size] = number;
+		counts[size] = count;
+		++size;
+		return true;
+	}
+
+	/**
+	 * Checks whether levels are watched.
+	 * 
+	 * @return Whether no level is watched
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Gets the number of watched levels.
+	 * 
+	 * @return Number of watched levels
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Gets the ID of a watched level.
+	 * 
+	 * @param i
+	 *            Index of the level
+	 * @return ID of the level
+	 */
+	public String getLevel(int i) {
+		return levels[i];
+	}
+
+	/**
+	 * Gets the number of a watched level.
+	 * 
+	 * @param i
+	 *            Index of the level
+	 * @return Number of the level or Command.NO_NUMBER
+	 */
+	public int getNumber(int i) {
+		return numbers[i];
+	}
+
+	/**
+	 * Updates the count of a watched level.
+	 * 
+	 * @param i
+	 *            Index of the level
+	 * @param count
+	 *            Current count of the level
+	 * @return Whether the count changed since it was pushed last
+	 */
+	public boolean update(int i, int count) {
+		if (counts[i] == count) {
+			return false;
+		}
+		counts[i] = count;
+		return true;
+	}
+
+	/**
+	 * Checks whether the watch has to be checked again and notes the time if
+	 * so.
+	 * 
+	 * @param now
+	 *            Current time in milliseconds
+	 * @param interval
+	 *            Push interval in milliseconds
+	 * @return Whether the interval has passed since the last check
+	 */
+	public boolean isDue(long now, long interval) {
+		if (size == 0 || now - lastPush < interval) {
+			return false;
+		}
+		lastPush = now;
+		return true;
+	}
+}